@@ -2,7 +2,10 @@ package dev.xlonia.szkauhandler;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
 import com.google.gson.reflect.TypeToken;
+import net.minecraft.core.registries.BuiltInRegistries;
+import net.minecraft.resources.ResourceLocation;
 import net.minecraft.server.level.ServerPlayer;
 import net.minecraft.world.item.Item;
 import net.minecraftforge.fml.loading.FMLPaths;
@@ -12,17 +15,36 @@ import org.apache.logging.log4j.Logger;
 
 import java.io.*;
 import java.lang.reflect.Type;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
+// 线程约定：修改方法互斥执行，查询方法可在任意线程无锁调用
+// 集合类的getter返回不可修改的快照，调用方不能借此修改配置
 public class ConfigManager {
     private static final Logger LOGGER = LogManager.getLogger();
-    private final Map<String, String> customCurrencies = new HashMap<>();
-    private final Map<UUID, Long> bannedPlayers = new HashMap<>();
-    private final Set<String> blockedItems = new HashSet<>();
-    private final Map<UUID, Set<String>> playerBlockedItems = new HashMap<>();
-    private final Map<UUID, Boolean> infiniteMode = new HashMap<>();
+    private static final long SAVE_DELAY_MILLIS = 2000;
+    private final Map<String, String> customCurrencies = new ConcurrentHashMap<>();
+    private final Map<UUID, Long> bannedPlayers = new ConcurrentHashMap<>();
+    private final Set<String> blockedItems = ConcurrentHashMap.newKeySet();
+    private final Map<UUID, Set<String>> playerBlockedItems = new ConcurrentHashMap<>();
+    private final Map<UUID, Boolean> infiniteMode = new ConcurrentHashMap<>();
+    // 交易历史保留策略；historyMaxRecords 同时决定历史索引的堆占用，默认 20 万条约占 20~45MB
+    private volatile int historyRetentionDays = 180;
+    private volatile long historyMaxRecords = 200_000;
+    private volatile int historyTailSize = 100;
+    // 已配置的简码 -> 物品的解析结果，增删货币时清空；大小以配置的货币数为限
+    private final Map<String, Optional<Item>> resolvedItems = new ConcurrentHashMap<>();
+    private final Object writeLock = new Object();
+    private boolean saveScheduled;
     
     public ConfigManager() {
         // 默认货币
@@ -31,32 +53,62 @@ public class ConfigManager {
         customCurrencies.put("AD", "minecraft:ancient_debris");
     }
     
-    public void addCustomCurrency(String code, String itemId) {
+    public synchronized void addCustomCurrency(String code, String itemId) {
         customCurrencies.put(code, itemId);
+        resolvedItems.clear();
+        markDirty();
     }
     
-    public void removeCustomCurrency(String code) {
+    public synchronized void removeCustomCurrency(String code) {
         customCurrencies.remove(code);
+        resolvedItems.clear();
+        markDirty();
     }
     
     public String getCurrencyItemId(String code) {
         return customCurrencies.getOrDefault(code, code);
     }
     
+    // 把交易简码（或物品ID）解析为物品，已配置的简码的结果缓存到货币配置变化为止
+    public Item getCurrencyItem(String code) {
+        Optional<Item> item = resolvedItems.get(code);
+        if (item == null) {
+            // 玩家可以输入任意简码或物品ID，只缓存已配置的简码，其余每次直接查注册表
+            item = customCurrencies.containsKey(code)
+                    ? resolvedItems.computeIfAbsent(code, this::resolveItem)
+                    : resolveItem(code);
+        }
+        return item.orElse(null);
+    }
+    
+    private Optional<Item> resolveItem(String code) {
+        ResourceLocation rl = ResourceLocation.tryParse(getCurrencyItemId(code));
+        if (rl == null) {
+            return Optional.empty();
+        }
+        return Optional.of(BuiltInRegistries.ITEM.get(rl));
+    }
+    
+    public boolean isCurrencyCode(String code) {
+        return customCurrencies.containsKey(code);
+    }
+    
     public Map<String, String> getCustomCurrencies() {
-        return customCurrencies;
+        return Map.copyOf(customCurrencies);
     }
     
-    public void banPlayer(UUID playerId, long durationSeconds) {
+    public synchronized void banPlayer(UUID playerId, long durationSeconds) {
         if (durationSeconds <= 0) {
             bannedPlayers.remove(playerId);
         } else {
             bannedPlayers.put(playerId, System.currentTimeMillis() + (durationSeconds * 1000));
         }
+        markDirty();
     }
     
-    public void unbanPlayer(UUID playerId) {
+    public synchronized void unbanPlayer(UUID playerId) {
         bannedPlayers.remove(playerId);
+        markDirty();
     }
     
     public boolean isPlayerBanned(UUID playerId) {
@@ -65,29 +117,36 @@ public class ConfigManager {
             return false;
         }
         if (System.currentTimeMillis() > banEndTime) {
-            bannedPlayers.remove(playerId);
+            // 期间被重新封禁时不移除
+            if (bannedPlayers.remove(playerId, banEndTime)) {
+                markDirty();
+            }
             return false;
         }
         return true;
     }
     
-    public void blockItem(String itemId) {
+    public synchronized void blockItem(String itemId) {
         blockedItems.add(itemId);
+        markDirty();
     }
     
-    public void unblockItem(String itemId) {
+    public synchronized void unblockItem(String itemId) {
         blockedItems.remove(itemId);
+        markDirty();
     }
     
-    public void blockItemForPlayer(UUID playerId, String itemId) {
-        playerBlockedItems.computeIfAbsent(playerId, k -> new HashSet<>()).add(itemId);
+    public synchronized void blockItemForPlayer(UUID playerId, String itemId) {
+        playerBlockedItems.computeIfAbsent(playerId, k -> ConcurrentHashMap.newKeySet()).add(itemId);
+        markDirty();
     }
     
-    public void unblockItemForPlayer(UUID playerId, String itemId) {
+    public synchronized void unblockItemForPlayer(UUID playerId, String itemId) {
         Set<String> items = playerBlockedItems.get(playerId);
         if (items != null) {
             items.remove(itemId);
         }
+        markDirty();
     }
     
     public boolean isItemBlocked(String itemId, UUID playerId) {
@@ -98,8 +157,9 @@ public class ConfigManager {
         return playerItems != null && playerItems.contains(itemId);
     }
     
-    public void setInfiniteMode(UUID playerId, boolean enabled) {
+    public synchronized void setInfiniteMode(UUID playerId, boolean enabled) {
         infiniteMode.put(playerId, enabled);
+        markDirty();
     }
     
     public boolean isInfiniteModeEnabled(UUID playerId) {
@@ -107,73 +167,161 @@ public class ConfigManager {
     }
     
     public Set<String> getBlockedItems() {
-        return blockedItems;
+        return Set.copyOf(blockedItems);
     }
     
     public Map<UUID, Set<String>> getPlayerBlockedItems() {
-        return playerBlockedItems;
+        Map<UUID, Set<String>> copy = new HashMap<>();
+        for (Map.Entry<UUID, Set<String>> entry : playerBlockedItems.entrySet()) {
+            copy.put(entry.getKey(), Set.copyOf(entry.getValue()));
+        }
+        return Collections.unmodifiableMap(copy);
     }
     
     public Map<UUID, Long> getBannedPlayers() {
-        return bannedPlayers;
+        return Map.copyOf(bannedPlayers);
     }
     
     public Map<UUID, Boolean> getInfiniteModePlayers() {
-        return infiniteMode;
+        return Map.copyOf(infiniteMode);
+    }
+    
+    public int getHistoryRetentionDays() {
+        return historyRetentionDays;
+    }
+    
+    public long getHistoryMaxRecords() {
+        return historyMaxRecords;
+    }
+    
+    // 每个玩家在内存中保留的最近交易记录条数
+    public int getHistoryTailSize() {
+        return historyTailSize;
+    }
+    
+    // 合并短时间内的多次修改，延迟后在后台IO线程上保存一次
+    private synchronized void markDirty() {
+        if (saveScheduled) {
+            return;
+        }
+        saveScheduled = true;
+        CompletableFuture.delayedExecutor(SAVE_DELAY_MILLIS, TimeUnit.MILLISECONDS).execute(() -> {
+            // 期间已同步保存过（例如服务器关闭）则跳过
+            if (isSaveScheduled()) {
+                SkhExecutors.io().execute(this::saveConfig);
+            }
+        });
+    }
+    
+    private synchronized boolean isSaveScheduled() {
+        return saveScheduled;
     }
     
+    private synchronized ConfigData snapshot() {
+        saveScheduled = false;
+        ConfigData data = new ConfigData();
+        data.customCurrencies = new HashMap<>(customCurrencies);
+        data.bannedPlayers = new HashMap<>(bannedPlayers);
+        data.blockedItems = new HashSet<>(blockedItems);
+        data.playerBlockedItems = new HashMap<>();
+        for (Map.Entry<UUID, Set<String>> entry : playerBlockedItems.entrySet()) {
+            data.playerBlockedItems.put(entry.getKey(), new HashSet<>(entry.getValue()));
+        }
+        data.infiniteMode = new HashMap<>(infiniteMode);
+        data.historyRetentionDays = historyRetentionDays;
+        data.historyMaxRecords = historyMaxRecords;
+        data.historyTailSize = historyTailSize;
+        return data;
+    }
+    
+    // 先写临时文件再原子替换，被替换的旧文件保留为 config.json.bak 供恢复
     public void saveConfig() {
-        try {
-            Path dataDir = FMLPaths.CONFIGDIR.get().resolve("szkauhandler");
-            Files.createDirectories(dataDir);
-            
-            // 保存配置
-            Path configFile = dataDir.resolve("config.json");
-            Gson gson = new GsonBuilder().setPrettyPrinting().create();
-            try (Writer writer = Files.newBufferedWriter(configFile)) {
-                ConfigData data = new ConfigData();
-                data.customCurrencies = customCurrencies;
-                data.bannedPlayers = bannedPlayers;
-                data.blockedItems = blockedItems;
-                data.playerBlockedItems = playerBlockedItems;
-                data.infiniteMode = infiniteMode;
-                gson.toJson(data, writer);
+        ConfigData data = snapshot();
+        synchronized (writeLock) {
+            try {
+                Path dataDir = FMLPaths.CONFIGDIR.get().resolve("szkauhandler");
+                Files.createDirectories(dataDir);
+                
+                // 保存配置
+                Path configFile = dataDir.resolve("config.json");
+                Path tempFile = dataDir.resolve("config.json.tmp");
+                Gson gson = new GsonBuilder().setPrettyPrinting().create();
+                try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                     Writer writer = new BufferedWriter(Channels.newWriter(channel, StandardCharsets.UTF_8))) {
+                    gson.toJson(data, writer);
+                    writer.flush();
+                    channel.force(true);
+                }
+                if (Files.exists(configFile)) {
+                    Files.copy(configFile, dataDir.resolve("config.json.bak"), StandardCopyOption.REPLACE_EXISTING);
+                }
+                Files.move(tempFile, configFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                LOGGER.error("保存配置失败: {}", e.getMessage());
             }
-        } catch (IOException e) {
-            LOGGER.error("保存配置失败: {}", e.getMessage());
         }
     }
     
     public void loadConfig() {
-        try {
-            Path dataDir = FMLPaths.CONFIGDIR.get().resolve("szkauhandler");
-            Path configFile = dataDir.resolve("config.json");
-            
-            if (Files.exists(configFile)) {
-                Gson gson = new Gson();
-                try (Reader reader = Files.newBufferedReader(configFile)) {
-                    ConfigData data = gson.fromJson(reader, ConfigData.class);
-                    if (data != null) {
-                        if (data.customCurrencies != null) {
-                            customCurrencies.putAll(data.customCurrencies);
-                        }
-                        if (data.bannedPlayers != null) {
-                            bannedPlayers.putAll(data.bannedPlayers);
-                        }
-                        if (data.blockedItems != null) {
-                            blockedItems.addAll(data.blockedItems);
-                        }
-                        if (data.playerBlockedItems != null) {
-                            playerBlockedItems.putAll(data.playerBlockedItems);
-                        }
-                        if (data.infiniteMode != null) {
-                            infiniteMode.putAll(data.infiniteMode);
-                        }
-                    }
-                }
+        Path dataDir = FMLPaths.CONFIGDIR.get().resolve("szkauhandler");
+        ConfigData data = readConfig(dataDir.resolve("config.json"));
+        if (data == null) {
+            // 主配置缺失或损坏时回退到上一次成功保存的版本
+            data = readConfig(dataDir.resolve("config.json.bak"));
+            if (data != null) {
+                LOGGER.warn("config.json 无法读取，已从 config.json.bak 恢复配置");
             }
-        } catch (IOException e) {
+        }
+        if (data != null) {
+            applyConfig(data);
+        }
+    }
+    
+    private ConfigData readConfig(Path configFile) {
+        if (!Files.exists(configFile)) {
+            return null;
+        }
+        Gson gson = new Gson();
+        try (Reader reader = Files.newBufferedReader(configFile)) {
+            return gson.fromJson(reader, ConfigData.class);
+        } catch (IOException | JsonParseException e) {
             LOGGER.error("加载配置失败: {}", e.getMessage());
+            return null;
+        }
+    }
+    
+    private synchronized void applyConfig(ConfigData data) {
+        if (data.customCurrencies != null) {
+            customCurrencies.putAll(data.customCurrencies);
+            resolvedItems.clear();
+        }
+        if (data.bannedPlayers != null) {
+            bannedPlayers.putAll(data.bannedPlayers);
+        }
+        if (data.blockedItems != null) {
+            blockedItems.addAll(data.blockedItems);
+        }
+        if (data.playerBlockedItems != null) {
+            for (Map.Entry<UUID, Set<String>> entry : data.playerBlockedItems.entrySet()) {
+                if (entry.getValue() == null) {
+                    continue;
+                }
+                Set<String> items = ConcurrentHashMap.newKeySet();
+                items.addAll(entry.getValue());
+                playerBlockedItems.put(entry.getKey(), items);
+            }
+        }
+        if (data.infiniteMode != null) {
+            infiniteMode.putAll(data.infiniteMode);
+        }
+        if (data.historyRetentionDays != null && data.historyRetentionDays > 0) {
+            historyRetentionDays = data.historyRetentionDays;
+        }
+        if (data.historyMaxRecords != null && data.historyMaxRecords > 0) {
+            historyMaxRecords = data.historyMaxRecords;
+        }
+        if (data.historyTailSize != null && data.historyTailSize > 0) {
+            historyTailSize = data.historyTailSize;
         }
     }
     
@@ -183,5 +331,8 @@ public class ConfigManager {
         public Set<String> blockedItems;
         public Map<UUID, Set<String>> playerBlockedItems;
         public Map<UUID, Boolean> infiniteMode;
+        public Integer historyRetentionDays;
+        public Long historyMaxRecords;
+        public Integer historyTailSize;
     }
 }
\ No newline at end of file
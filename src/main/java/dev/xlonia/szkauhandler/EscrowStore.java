@@ -0,0 +1,279 @@
+package dev.xlonia.szkauhandler;
+
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.nbt.ListTag;
+import net.minecraft.nbt.NbtIo;
+import net.minecraft.nbt.Tag;
+import net.minecraft.network.chat.Component;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.server.level.ServerPlayer;
+import net.minecraft.world.item.ItemStack;
+import net.minecraftforge.event.TickEvent;
+import net.minecraftforge.event.entity.player.PlayerEvent;
+import net.minecraftforge.eventbus.api.SubscribeEvent;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+// 托管物品存储：
+// - 交易托管：发起交易时从发起者处取走的物品，接受时交给目标，拒绝或过期时退回
+// - 待领取邮箱：成交所得或退回的物品在玩家不在线、物品栏放不下时暂存于此，玩家登录时或使用 /szkauhandler claim 领取
+// 市场订单（MarketManager）与托管物品、邮箱写在同一份快照中，一次原子替换，崩溃时不会只保存其中一方而重复或丢失物品
+// 线程约定：所有方法只在服务器线程上调用，写盘在后台IO线程上进行
+public class EscrowStore {
+    private static final Logger LOGGER = LogManager.getLogger();
+    // 修改后尽快写盘，同一段时间内的多次修改合并为一次
+    private static final long SAVE_DELAY_MILLIS = 2000;
+    
+    private final Path dataFile;
+    private final Map<UUID, List<ItemStack>> mailboxes = new HashMap<>();
+    // 交易ID -> 托管的物品
+    private final Map<UUID, Hold> holds = new HashMap<>();
+    private boolean dirty;
+    private long dirtySince;
+    
+    public EscrowStore(Path dataFile) {
+        this.dataFile = dataFile;
+    }
+    
+    // 调用方已从 owner 处取走物品
+    public void hold(UUID tradeId, UUID owner, ItemStack stack) {
+        holds.put(tradeId, new Hold(owner, stack.copy()));
+        markDirty();
+    }
+    
+    public ItemStack getHeld(UUID tradeId) {
+        Hold hold = holds.get(tradeId);
+        return hold != null ? hold.stack() : null;
+    }
+    
+    // 物品已交给对方，解除托管
+    public void release(UUID tradeId) {
+        if (holds.remove(tradeId) != null) {
+            markDirty();
+        }
+    }
+    
+    // 把托管的物品退回给原主
+    public void refund(MinecraftServer server, UUID tradeId, String reason) {
+        Hold hold = holds.remove(tradeId);
+        if (hold == null) {
+            return;
+        }
+        markDirty();
+        deliver(server, hold.owner(), hold.stack(), reason);
+    }
+    
+    // 把物品交给玩家：在线且放得下时直接放入物品栏，否则放入邮箱
+    public void deliver(MinecraftServer server, UUID playerId, ItemStack stack, String reason) {
+        if (stack.isEmpty()) {
+            return;
+        }
+        ServerPlayer player = server.getPlayerList().getPlayer(playerId);
+        if (player != null && give(player, stack)) {
+            player.sendSystemMessage(Component.literal(String.format("%s：获得 [%s] x%d",
+                    reason, stack.getHoverName().getString(), stack.getCount())));
+            return;
+        }
+        mail(playerId, stack);
+        if (player != null) {
+            player.sendSystemMessage(Component.literal(String.format("%s：物品栏已满，[%s] x%d 已存入邮箱，使用 /szkauhandler claim 领取",
+                    reason, stack.getHoverName().getString(), stack.getCount())));
+        }
+    }
+    
+    // 直接存入邮箱；存档中的 Count 只有一个字节，超过一组的数量拆成多组存入
+    public void mail(UUID playerId, ItemStack stack) {
+        if (stack.isEmpty()) {
+            return;
+        }
+        List<ItemStack> mailbox = mailboxes.computeIfAbsent(playerId, k -> new ArrayList<>());
+        int maxStackSize = stack.getMaxStackSize();
+        for (int remaining = stack.getCount(); remaining > 0; remaining -= maxStackSize) {
+            mailbox.add(stack.copyWithCount(Math.min(remaining, maxStackSize)));
+        }
+        markDirty();
+    }
+    
+    // 整组放入物品栏，放不下时回滚，不留下部分放入的物品
+    private static boolean give(ServerPlayer player, ItemStack stack) {
+        InventoryIndex index = InventoryIndex.of(player);
+        if (index.add(stack.copy())) {
+            return true;
+        }
+        index.rollback();
+        return false;
+    }
+    
+    public int countPending(UUID playerId) {
+        List<ItemStack> mailbox = mailboxes.get(playerId);
+        return mailbox != null ? mailbox.size() : 0;
+    }
+    
+    // 按存入顺序领取，遇到放不下的物品时停止，剩余的留在邮箱中
+    public int claim(ServerPlayer player) {
+        List<ItemStack> mailbox = mailboxes.get(player.getUUID());
+        if (mailbox == null) {
+            return 0;
+        }
+        int claimed = 0;
+        Iterator<ItemStack> iterator = mailbox.iterator();
+        while (iterator.hasNext()) {
+            ItemStack stack = iterator.next();
+            if (!give(player, stack)) {
+                break;
+            }
+            iterator.remove();
+            claimed++;
+        }
+        if (mailbox.isEmpty()) {
+            mailboxes.remove(player.getUUID());
+        }
+        if (claimed > 0) {
+            markDirty();
+        }
+        return claimed;
+    }
+    
+    @SubscribeEvent
+    public void onPlayerLoggedIn(PlayerEvent.PlayerLoggedInEvent event) {
+        if (!(event.getEntity() instanceof ServerPlayer player)) {
+            return;
+        }
+        int claimed = claim(player);
+        int remaining = countPending(player.getUUID());
+        if (claimed > 0) {
+            player.sendSystemMessage(Component.literal("已从邮箱领取 " + claimed + " 组物品"));
+        }
+        if (remaining > 0) {
+            player.sendSystemMessage(Component.literal("邮箱中还有 " + remaining + " 组物品，腾出空间后使用 /szkauhandler claim 领取"));
+        }
+    }
+    
+    @SubscribeEvent
+    public void onServerTick(TickEvent.ServerTickEvent event) {
+        if (event.phase != TickEvent.Phase.END) {
+            return;
+        }
+        if (dirty && System.currentTimeMillis() - dirtySince >= SAVE_DELAY_MILLIS) {
+            save();
+        }
+    }
+    
+    // 托管物品、邮箱与市场订单的每次变动都会在短暂延迟后写盘，缩小崩溃时丢失或重复物品的窗口
+    void markDirty() {
+        if (!dirty) {
+            dirty = true;
+            dirtySince = System.currentTimeMillis();
+        }
+    }
+    
+    // 在服务器线程上生成快照，压缩写盘交给后台IO线程
+    public void save() {
+        if (!dirty) {
+            return;
+        }
+        dirty = false;
+        CompoundTag root = new CompoundTag();
+        ListTag list = new ListTag();
+        for (Map.Entry<UUID, List<ItemStack>> entry : mailboxes.entrySet()) {
+            CompoundTag mailbox = new CompoundTag();
+            mailbox.putUUID("Player", entry.getKey());
+            ListTag items = new ListTag();
+            for (ItemStack stack : entry.getValue()) {
+                items.add(stack.save(new CompoundTag()));
+            }
+            mailbox.put("Items", items);
+            list.add(mailbox);
+        }
+        root.put("Mailboxes", list);
+        ListTag holdList = new ListTag();
+        for (Map.Entry<UUID, Hold> entry : holds.entrySet()) {
+            CompoundTag hold = new CompoundTag();
+            hold.putUUID("Trade", entry.getKey());
+            hold.putUUID("Owner", entry.getValue().owner());
+            hold.put("Item", entry.getValue().stack().save(new CompoundTag()));
+            holdList.add(hold);
+        }
+        root.put("Holds", holdList);
+        MarketManager market = Szkauhandler.getInstance().getMarketManager();
+        root.put("Market", market.save());
+        SkhExecutors.io().execute(() -> write(root, market));
+    }
+    
+    private void write(CompoundTag root, MarketManager market) {
+        try {
+            Files.createDirectories(dataFile.getParent());
+            Path tempFile = dataFile.resolveSibling(dataFile.getFileName() + ".tmp");
+            NbtIo.writeCompressed(root, tempFile.toFile());
+            Files.move(tempFile, dataFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            LOGGER.error("保存托管邮箱失败: {}", e.getMessage());
+            return;
+        }
+        market.deleteLegacyFile();
+    }
+    
+    public void load() {
+        // 同一进程内重新开服（单人游戏/局域网）时内存中还留着上次的数据，不清空会重复退回托管物品
+        mailboxes.clear();
+        holds.clear();
+        dirty = false;
+        // 市场订单在托管与邮箱之后加载，无法恢复的买单会把货币退回邮箱
+        CompoundTag market = null;
+        if (!Files.exists(dataFile)) {
+            Szkauhandler.getInstance().getMarketManager().load(null);
+            return;
+        }
+        try {
+            CompoundTag root = NbtIo.readCompressed(dataFile.toFile());
+            ListTag list = root.getList("Mailboxes", Tag.TAG_COMPOUND);
+            int count = 0;
+            for (int i = 0; i < list.size(); i++) {
+                CompoundTag mailbox = list.getCompound(i);
+                ListTag items = mailbox.getList("Items", Tag.TAG_COMPOUND);
+                List<ItemStack> stacks = new ArrayList<>(items.size());
+                for (int j = 0; j < items.size(); j++) {
+                    ItemStack stack = ItemStack.of(items.getCompound(j));
+                    if (!stack.isEmpty()) {
+                        stacks.add(stack);
+                    }
+                }
+                if (!stacks.isEmpty()) {
+                    mailboxes.put(mailbox.getUUID("Player"), stacks);
+                    count += stacks.size();
+                }
+            }
+            // 待处理交易不会跨重启保留，留下的托管物品全部退回原主的邮箱
+            ListTag holdList = root.getList("Holds", Tag.TAG_COMPOUND);
+            int orphans = 0;
+            for (int i = 0; i < holdList.size(); i++) {
+                CompoundTag hold = holdList.getCompound(i);
+                ItemStack stack = ItemStack.of(hold.getCompound("Item"));
+                if (!stack.isEmpty()) {
+                    mailboxes.computeIfAbsent(hold.getUUID("Owner"), k -> new ArrayList<>()).add(stack);
+                    orphans++;
+                }
+            }
+            if (orphans > 0) {
+                markDirty();
+                LOGGER.info("已将 {} 个未完成交易的托管物品退回邮箱", orphans);
+            }
+            LOGGER.info("已加载 {} 组待领取物品", count + orphans);
+            if (root.contains("Market", Tag.TAG_COMPOUND)) {
+                market = root.getCompound("Market");
+            }
+        } catch (IOException e) {
+            LOGGER.error("加载托管邮箱失败: {}", e.getMessage());
+        }
+        Szkauhandler.getInstance().getMarketManager().load(market);
+    }
+    
+    private record Hold(UUID owner, ItemStack stack) {
+    }
+}
\ No newline at end of file
@@ -0,0 +1,189 @@
+package dev.xlonia.szkauhandler;
+
+import java.util.Arrays;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BinaryOperator;
+import java.util.function.Supplier;
+
+// 全部历史的列式副本：每个字段一个基本类型数组，按追加顺序排列，全量统计时顺序扫描而不必逐个访问记录对象
+// 玩家和物品保存为 HistoryDictionary 中的下标；只在 HistoryStore 的锁内追加、裁剪和生成快照
+// 快照只读取生成时已写入的行，追加只写快照范围之外的位置，扩容与压缩都复制到新数组，因此快照在锁外扫描是安全的
+public class HistoryColumns {
+    private static final int INITIAL_CAPACITY = 1024;
+    
+    private long[] positions = new long[INITIAL_CAPACITY];
+    private long[] timestamps = new long[INITIAL_CAPACITY];
+    private int[] initiators = new int[INITIAL_CAPACITY];
+    private int[] targets = new int[INITIAL_CAPACITY];
+    private int[] offeredItems = new int[INITIAL_CAPACITY];
+    private int[] offeredAmounts = new int[INITIAL_CAPACITY];
+    private int[] requestedItems1 = new int[INITIAL_CAPACITY];
+    private int[] requestedAmounts1 = new int[INITIAL_CAPACITY];
+    private int[] requestedItems2 = new int[INITIAL_CAPACITY];
+    private int[] requestedAmounts2 = new int[INITIAL_CAPACITY];
+    private byte[] statuses = new byte[INITIAL_CAPACITY];
+    // 有效行为 [start, end)，裁剪只移动 start，压缩推迟到下一次扩容
+    private int start;
+    private int end;
+    
+    void append(TradeManager.TradeHistory history, long position) {
+        if (end == positions.length) {
+            grow();
+        }
+        positions[end] = position;
+        timestamps[end] = history.getTimestamp();
+        initiators[end] = history.initiatorIndex();
+        targets[end] = history.targetIndex();
+        offeredItems[end] = history.offeredItemIndex();
+        offeredAmounts[end] = history.getOfferedAmount();
+        requestedItems1[end] = history.requestedItem1Index();
+        requestedAmounts1[end] = history.getRequestedAmount1();
+        requestedItems2[end] = history.requestedItem2Index();
+        requestedAmounts2[end] = history.getRequestedAmount2();
+        statuses[end] = (byte) history.getStatus().ordinal();
+        end++;
+    }
+    
+    // 复制到新数组并丢弃开头已裁剪的行；裁剪后空出一半以上时保持容量不变
+    private void grow() {
+        int size = end - start;
+        int capacity = size * 2 > positions.length ? positions.length * 2 : positions.length;
+        positions = Arrays.copyOfRange(positions, start, start + capacity);
+        timestamps = Arrays.copyOfRange(timestamps, start, start + capacity);
+        initiators = Arrays.copyOfRange(initiators, start, start + capacity);
+        targets = Arrays.copyOfRange(targets, start, start + capacity);
+        offeredItems = Arrays.copyOfRange(offeredItems, start, start + capacity);
+        offeredAmounts = Arrays.copyOfRange(offeredAmounts, start, start + capacity);
+        requestedItems1 = Arrays.copyOfRange(requestedItems1, start, start + capacity);
+        requestedAmounts1 = Arrays.copyOfRange(requestedAmounts1, start, start + capacity);
+        requestedItems2 = Arrays.copyOfRange(requestedItems2, start, start + capacity);
+        requestedAmounts2 = Arrays.copyOfRange(requestedAmounts2, start, start + capacity);
+        statuses = Arrays.copyOfRange(statuses, start, start + capacity);
+        start = 0;
+        end = size;
+    }
+    
+    // 位置随追加单调递增，丢弃位置小于 minPosition 的行
+    void trimBelow(long minPosition) {
+        int low = start;
+        int high = end;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (positions[mid] < minPosition) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        start = low;
+    }
+    
+    void clear() {
+        start = 0;
+        end = 0;
+    }
+    
+    int size() {
+        return end - start;
+    }
+    
+    // 字典随快照一起交出，统计时按它解析下标
+    View snapshot(HistoryDictionary dictionary) {
+        return new View(this, dictionary);
+    }
+    
+    // 只读快照，直接暴露数组供扫描使用，有效行为 [from, to)
+    public static final class View {
+        private static final int SPLIT_THRESHOLD = 16384;
+        
+        public final long[] timestamps;
+        public final int[] initiators;
+        public final int[] targets;
+        public final int[] offeredItems;
+        public final int[] offeredAmounts;
+        public final int[] requestedItems1;
+        public final int[] requestedAmounts1;
+        public final int[] requestedItems2;
+        public final int[] requestedAmounts2;
+        public final byte[] statuses;
+        public final int from;
+        public final int to;
+        public final HistoryDictionary dictionary;
+        
+        private View(HistoryColumns columns, HistoryDictionary dictionary) {
+            this.timestamps = columns.timestamps;
+            this.initiators = columns.initiators;
+            this.targets = columns.targets;
+            this.offeredItems = columns.offeredItems;
+            this.offeredAmounts = columns.offeredAmounts;
+            this.requestedItems1 = columns.requestedItems1;
+            this.requestedAmounts1 = columns.requestedAmounts1;
+            this.requestedItems2 = columns.requestedItems2;
+            this.requestedAmounts2 = columns.requestedAmounts2;
+            this.statuses = columns.statuses;
+            this.from = columns.start;
+            this.to = columns.end;
+            this.dictionary = dictionary;
+        }
+        
+        public int size() {
+            return to - from;
+        }
+        
+        // 第一条时间不早于 since 的行；记录按写入顺序追加，时间戳基本有序
+        public int lowerBound(long since) {
+            int low = from;
+            int high = to;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (timestamps[mid] < since) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+        
+        // 把 [rangeFrom, rangeTo) 拆成小段在 fork/join 线程池上并行扫描，每段累加到自己的结果中再两两合并
+        public <R> R scan(int rangeFrom, int rangeTo, Supplier<R> identity, RangeScanner<R> scanner, BinaryOperator<R> combiner) {
+            return SkhExecutors.scans().invoke(new ScanTask<>(this, rangeFrom, rangeTo, identity, scanner, combiner));
+        }
+    }
+    
+    public interface RangeScanner<R> {
+        void scan(View view, int from, int to, R result);
+    }
+    
+    private static final class ScanTask<R> extends RecursiveTask<R> {
+        private final View view;
+        private final int from;
+        private final int to;
+        private final Supplier<R> identity;
+        private final RangeScanner<R> scanner;
+        private final BinaryOperator<R> combiner;
+        
+        ScanTask(View view, int from, int to, Supplier<R> identity, RangeScanner<R> scanner, BinaryOperator<R> combiner) {
+            this.view = view;
+            this.from = from;
+            this.to = to;
+            this.identity = identity;
+            this.scanner = scanner;
+            this.combiner = combiner;
+        }
+        
+        @Override
+        protected R compute() {
+            if (to - from <= View.SPLIT_THRESHOLD) {
+                R result = identity.get();
+                scanner.scan(view, from, to, result);
+                return result;
+            }
+            int mid = (from + to) >>> 1;
+            ScanTask<R> left = new ScanTask<>(view, from, mid, identity, scanner, combiner);
+            left.fork();
+            R right = new ScanTask<>(view, mid, to, identity, scanner, combiner).compute();
+            return combiner.apply(left.join(), right);
+        }
+    }
+}
\ No newline at end of file
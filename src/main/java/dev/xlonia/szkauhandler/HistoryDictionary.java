@@ -0,0 +1,34 @@
+package dev.xlonia.szkauhandler;
+
+import java.util.UUID;
+
+// 交易历史的玩家/物品字典，由 HistoryStore 持有；关闭时换成空字典，下次回放日志时重新建立
+// 每条 TradeHistory 都引用创建它的字典，换掉字典后仍在使用的旧记录和列快照照样能解析
+public class HistoryDictionary {
+    private final Palette<UUID> players = new Palette<>();
+    private final Palette<String> items = new Palette<>();
+    
+    int internPlayer(UUID playerId) {
+        return players.intern(playerId);
+    }
+    
+    int internItem(String code) {
+        return items.intern(code);
+    }
+    
+    UUID player(int index) {
+        return players.get(index);
+    }
+    
+    String item(int index) {
+        return items.get(index);
+    }
+    
+    int playerCount() {
+        return players.size();
+    }
+    
+    int itemCount() {
+        return items.size();
+    }
+}
\ No newline at end of file
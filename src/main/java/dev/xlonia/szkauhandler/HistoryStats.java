@@ -0,0 +1,119 @@
+package dev.xlonia.szkauhandler;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+
+// 一段时间内的交易统计：按物品的成交量、按货币的支付量、成交最多的玩家、各状态的记录数
+// 在 HistoryColumns 快照上用 fork/join 并行扫描，每段各自累加到按字典下标的数组中再逐项相加
+public class HistoryStats {
+    private static final byte COMPLETED = (byte) TradeManager.Trade.Status.COMPLETED.ordinal();
+    
+    private final HistoryDictionary dictionary;
+    private final long[] itemVolumes;
+    private final long[] itemTrades;
+    private final long[] currencyFlows;
+    private final long[] traderTrades;
+    private final long[] statusCounts = new long[TradeManager.Trade.Status.values().length];
+    
+    private HistoryStats(HistoryDictionary dictionary, int items, int players) {
+        this.dictionary = dictionary;
+        this.itemVolumes = new long[items];
+        this.itemTrades = new long[items];
+        this.currencyFlows = new long[items];
+        this.traderTrades = new long[players];
+    }
+    
+    // 统计时间不早于 since 的记录；应在查询线程上调用
+    public static HistoryStats compute(HistoryColumns.View view, long since) {
+        // 快照中的下标都在字典当前大小之内
+        HistoryDictionary dictionary = view.dictionary;
+        int items = dictionary.itemCount();
+        int players = dictionary.playerCount();
+        return view.scan(view.lowerBound(since), view.to,
+                () -> new HistoryStats(dictionary, items, players),
+                HistoryStats::accumulate,
+                HistoryStats::merge);
+    }
+    
+    private static void accumulate(HistoryColumns.View view, int from, int to, HistoryStats stats) {
+        for (int i = from; i < to; i++) {
+            byte status = view.statuses[i];
+            stats.statusCounts[status]++;
+            if (status != COMPLETED) {
+                continue;
+            }
+            stats.itemVolumes[view.offeredItems[i]] += view.offeredAmounts[i];
+            stats.itemTrades[view.offeredItems[i]]++;
+            stats.currencyFlows[view.requestedItems1[i]] += view.requestedAmounts1[i];
+            stats.currencyFlows[view.requestedItems2[i]] += view.requestedAmounts2[i];
+            stats.traderTrades[view.initiators[i]]++;
+            if (view.targets[i] != view.initiators[i]) {
+                stats.traderTrades[view.targets[i]]++;
+            }
+        }
+    }
+    
+    private static HistoryStats merge(HistoryStats left, HistoryStats right) {
+        add(left.itemVolumes, right.itemVolumes);
+        add(left.itemTrades, right.itemTrades);
+        add(left.currencyFlows, right.currencyFlows);
+        add(left.traderTrades, right.traderTrades);
+        add(left.statusCounts, right.statusCounts);
+        return left;
+    }
+    
+    private static void add(long[] target, long[] values) {
+        for (int i = 0; i < target.length; i++) {
+            target[i] += values[i];
+        }
+    }
+    
+    public long getStatusCount(TradeManager.Trade.Status status) {
+        return statusCounts[status.ordinal()];
+    }
+    
+    // 按成交量从大到小的前 limit 个物品
+    public List<Entry<String>> topItems(int limit) {
+        List<Entry<String>> result = new ArrayList<>();
+        for (int i : top(itemVolumes, limit)) {
+            result.add(new Entry<>(dictionary.item(i), itemVolumes[i], itemTrades[i]));
+        }
+        return result;
+    }
+    
+    public List<Entry<String>> topCurrencies(int limit) {
+        List<Entry<String>> result = new ArrayList<>();
+        for (int i : top(currencyFlows, limit + 1)) {
+            String code = dictionary.item(i);
+            // "0" 表示没有第二种请求物品
+            if (!code.equals("0") && result.size() < limit) {
+                result.add(new Entry<>(code, currencyFlows[i], 0));
+            }
+        }
+        return result;
+    }
+    
+    public List<Entry<UUID>> topTraders(int limit) {
+        List<Entry<UUID>> result = new ArrayList<>();
+        for (int i : top(traderTrades, limit)) {
+            result.add(new Entry<>(dictionary.player(i), traderTrades[i], traderTrades[i]));
+        }
+        return result;
+    }
+    
+    private static List<Integer> top(long[] values, int limit) {
+        List<Integer> indices = new ArrayList<>();
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] > 0) {
+                indices.add(i);
+            }
+        }
+        indices.sort(Comparator.comparingLong((Integer i) -> values[i]).reversed());
+        return indices.subList(0, Math.min(limit, indices.size()));
+    }
+    
+    public record Entry<K>(K key, long amount, long trades) {
+    }
+}
\ No newline at end of file
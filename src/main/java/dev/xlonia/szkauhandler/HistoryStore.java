@@ -0,0 +1,598 @@
+package dev.xlonia.szkauhandler;
+
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongArrays;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ObjLongConsumer;
+
+// 交易历史存储：磁盘上按段滚动的二进制日志 + 在线玩家在内存中的最近记录
+// 最近记录在玩家登录时从日志预读，下线一段时间后淘汰；离线玩家的查询结果按LRU保留有限个数
+// 只按玩家过滤且落在最近记录范围内的分页查询直接由最近记录返回，不读盘
+// 完整历史只保存在段文件中，按配置的保留天数/条数删除最旧的段
+// 记录位置（段号<<32 | 段内偏移）随追加单调递增，按玩家、物品、状态分别维护有序的位置索引，
+// 另有全局位置与时间戳用于时间范围查询；查询在索引上完成，分页时只读取当前页的记录
+// 同时维护一份列式副本（HistoryColumns），供全量统计扫描
+// 堆占用不是恒定的：记录本身不在堆中，但位置索引与列式副本对每条保留的记录约占 100~230 字节（含数组扩容余量），
+// 随保留的记录数线性增长，由保留策略中的 historyMaxRecords 限定（按整段删除，最多再多出一个段的记录）
+public class HistoryStore {
+    private static final Logger LOGGER = LogManager.getLogger();
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final long SEGMENT_MAX_BYTES = 4L * 1024 * 1024;
+    private static final long SEGMENT_MAX_AGE_MILLIS = 24L * 60 * 60 * 1000;
+    private static final long SYNC_INTERVAL_MILLIS = 2000;
+    // 玩家下线后最近记录继续保留的时间，期间重新登录不需要再读盘
+    private static final long TAIL_EVICT_DELAY_MILLIS = 10L * 60 * 1000;
+    // 为离线玩家查询保留的最近记录上限
+    private static final int MAX_OFFLINE_TAILS = 64;
+    
+    private final Path directory;
+    private final Path legacyJournal;
+    private final List<TradeJournal> segments = new ArrayList<>();
+    // 按访问顺序排列，淘汰离线玩家时从最久未访问的开始
+    private final Map<UUID, ArrayDeque<TradeManager.TradeHistory>> tails = new LinkedHashMap<>(16, 0.75f, true);
+    // 正在从日志读取最近记录的玩家，读取期间追加的记录直接进入其队列
+    private final Set<UUID> loadingTails = new HashSet<>();
+    // 在线玩家与下线时间由服务器线程在登录/下线时更新，不需要持有锁
+    private final Set<UUID> online = ConcurrentHashMap.newKeySet();
+    private final Map<UUID, Long> releasedAt = new ConcurrentHashMap<>();
+    private final Map<UUID, LongArrayList> positions = new HashMap<>();
+    private final Map<String, LongArrayList> itemPositions = new HashMap<>();
+    private final Map<TradeManager.Trade.Status, LongArrayList> statusPositions = new EnumMap<>(TradeManager.Trade.Status.class);
+    // 位置索引只在末尾追加；裁剪或清空时换成新的列表，不改动已有数组中的元素，查询可以在锁外读取快照
+    private LongArrayList allPositions = new LongArrayList();
+    private LongArrayList allTimestamps = new LongArrayList();
+    private final HistoryColumns columns = new HistoryColumns();
+    // 记录与列中的玩家/物品下标都指向这个字典；关闭时换成空字典，回放时重新登记
+    private HistoryDictionary dictionary = new HistoryDictionary();
+    // 各位置索引中已清理掉的段号下界
+    private long trimmedBelow = -1;
+    private ScheduledExecutorService syncExecutor;
+    
+    public HistoryStore(Path directory, Path legacyJournal) {
+        this.directory = directory;
+        this.legacyJournal = legacyJournal;
+    }
+    
+    public boolean exists() {
+        return Files.isDirectory(directory) || Files.exists(legacyJournal);
+    }
+    
+    public synchronized HistoryDictionary dictionary() {
+        return dictionary;
+    }
+    
+    // 回放全部段文件，重建索引并执行保留策略；每条记录也会交给listener
+    // 不更换字典：回放期间暂存的新记录已经登记在当前字典中
+    public synchronized int load(ObjLongConsumer<TradeManager.TradeHistory> listener) {
+        migrateLegacyJournal();
+        segments.clear();
+        clearIndexes();
+        int count = 0;
+        if (Files.isDirectory(directory)) {
+            List<Long> ids = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+                for (Path file : stream) {
+                    String name = file.getFileName().toString();
+                    try {
+                        ids.add(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+                    } catch (NumberFormatException e) {
+                        LOGGER.warn("忽略无法识别的交易日志段: {}", name);
+                    }
+                }
+            } catch (IOException e) {
+                LOGGER.error("读取交易历史目录失败: {}", e.getMessage());
+            }
+            Collections.sort(ids);
+            for (long id : ids) {
+                TradeJournal segment = new TradeJournal(segmentPath(id), id);
+                count += segment.replay(dictionary, (history, offset) -> {
+                    long position = position(id, offset);
+                    index(history, position);
+                    listener.accept(history, position);
+                });
+                segments.add(segment);
+            }
+        }
+        enforceRetention();
+        return count;
+    }
+    
+    private void clearIndexes() {
+        tails.clear();
+        positions.clear();
+        itemPositions.clear();
+        statusPositions.clear();
+        allPositions = new LongArrayList();
+        allTimestamps = new LongArrayList();
+        columns.clear();
+        trimmedBelow = -1;
+    }
+    
+    // 旧版本的单文件日志与段文件格式相同，直接作为第一个段
+    private void migrateLegacyJournal() {
+        if (!Files.exists(legacyJournal)) {
+            return;
+        }
+        try {
+            Files.createDirectories(directory);
+            Files.move(legacyJournal, segmentPath(0), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            LOGGER.error("迁移旧交易日志失败: {}", e.getMessage());
+        }
+    }
+    
+    // 返回记录的位置，写入失败时返回-1
+    public synchronized long append(TradeManager.TradeHistory history) {
+        TradeJournal segment = activeSegment();
+        try {
+            long position = position(segment.getSegmentId(), segment.append(history));
+            index(history, position);
+            return position;
+        } catch (IOException e) {
+            LOGGER.error("写入交易日志失败: {}", e.getMessage());
+            addToTail(history);
+            return -1;
+        }
+    }
+    
+    private static long position(long segmentId, long offset) {
+        return (segmentId << 32) | offset;
+    }
+    
+    private void index(TradeManager.TradeHistory history, long position) {
+        positions.computeIfAbsent(history.getInitiatorId(), k -> new LongArrayList()).add(position);
+        if (!history.getTargetId().equals(history.getInitiatorId())) {
+            positions.computeIfAbsent(history.getTargetId(), k -> new LongArrayList()).add(position);
+        }
+        Set<String> items = new HashSet<>(4);
+        items.add(TradeFilter.itemKey(history.getOfferedItem()));
+        items.add(TradeFilter.itemKey(history.getRequestedItem1()));
+        if (!history.getRequestedItem2().equals("0")) {
+            items.add(TradeFilter.itemKey(history.getRequestedItem2()));
+        }
+        for (String item : items) {
+            itemPositions.computeIfAbsent(item, k -> new LongArrayList()).add(position);
+        }
+        statusPositions.computeIfAbsent(history.getStatus(), k -> new LongArrayList()).add(position);
+        allPositions.add(position);
+        allTimestamps.add(history.getTimestamp());
+        columns.append(history, position);
+        addToTail(history);
+    }
+    
+    // 按时间倒序分页（page从1开始）；以最短的索引为主序列，逐个在其余索引中二分查找，得到满足全部条件的记录位置；
+    // 锁内只取各索引的数组与长度，求交集和读取文件都在锁外进行，不阻塞服务器线程上的追加
+    public HistoryPage query(TradeFilter filter, int page, int pageSize) {
+        if (filter.getParticipant() != null && filter.getItem() == null && filter.getStatus() == null && !filter.hasTimeRange()) {
+            HistoryPage recent = queryRecent(filter.getParticipant(), page, pageSize);
+            if (recent != null) {
+                return recent;
+            }
+        }
+        long[][] arrays;
+        int[] sizes;
+        long fromPosition = Long.MIN_VALUE;
+        long toPosition = Long.MAX_VALUE;
+        synchronized (this) {
+            trimDeletedPositions();
+            List<LongArrayList> lists = new ArrayList<>(3);
+            if (filter.getParticipant() != null) {
+                lists.add(positions.get(filter.getParticipant()));
+            }
+            if (filter.getItem() != null) {
+                lists.add(itemPositions.get(filter.getItem()));
+            }
+            if (filter.getStatus() != null) {
+                lists.add(statusPositions.get(filter.getStatus()));
+            }
+            if (lists.isEmpty()) {
+                lists.add(allPositions);
+            }
+            if (lists.contains(null)) {
+                return new HistoryPage(Collections.emptyList(), page, 1, 0);
+            }
+            lists.sort(Comparator.comparingInt(LongArrayList::size));
+            
+            // 时间范围先换算为位置范围
+            if (filter.hasTimeRange()) {
+                int from = lowerBound(allTimestamps, filter.getSince());
+                int to = lowerBound(allTimestamps, filter.getUntil() == Long.MAX_VALUE ? Long.MAX_VALUE : filter.getUntil() + 1);
+                if (from >= to) {
+                    return new HistoryPage(Collections.emptyList(), page, 1, 0);
+                }
+                fromPosition = allPositions.getLong(from);
+                toPosition = allPositions.getLong(to - 1);
+            }
+            // 快照长度之内的元素之后不会再被改写
+            arrays = new long[lists.size()][];
+            sizes = new int[lists.size()];
+            for (int i = 0; i < lists.size(); i++) {
+                arrays[i] = lists.get(i).elements();
+                sizes[i] = lists.get(i).size();
+            }
+        }
+        
+        long[] driver = arrays[0];
+        int start = lowerBound(driver, sizes[0], fromPosition);
+        int end = toPosition == Long.MAX_VALUE ? sizes[0] : lowerBound(driver, sizes[0], toPosition + 1);
+        int skip = (page - 1) * pageSize;
+        int total;
+        LongArrayList selected = new LongArrayList(pageSize);
+        if (arrays.length == 1) {
+            // 只有一个索引时直接定位到本页，不需要遍历
+            total = Math.max(0, end - start);
+            for (int i = end - 1 - skip; i >= start && selected.size() < pageSize; i--) {
+                selected.add(driver[i]);
+            }
+        } else {
+            total = 0;
+            for (int i = end - 1; i >= start; i--) {
+                long position = driver[i];
+                if (!containsAll(arrays, sizes, position)) {
+                    continue;
+                }
+                if (total >= skip && selected.size() < pageSize) {
+                    selected.add(position);
+                }
+                total++;
+            }
+        }
+        long[] pagePositions = selected.toLongArray();
+        TradeJournal[] pageSegments;
+        HistoryDictionary pageDictionary;
+        synchronized (this) {
+            pageDictionary = dictionary;
+            pageSegments = new TradeJournal[pagePositions.length];
+            for (int i = 0; i < pagePositions.length; i++) {
+                pageSegments[i] = findSegment(pagePositions[i] >>> 32);
+            }
+        }
+        List<TradeManager.TradeHistory> records = new ArrayList<>(pagePositions.length);
+        for (int i = 0; i < pagePositions.length; i++) {
+            if (pageSegments[i] == null) {
+                continue;
+            }
+            try {
+                records.add(pageSegments[i].read(pagePositions[i] & 0xFFFFFFFFL, pageDictionary));
+            } catch (IOException e) {
+                // 段可能刚被保留策略删除
+                LOGGER.warn("读取交易历史记录失败: {}", e.getMessage());
+            }
+        }
+        return new HistoryPage(records, page, pageCount(total, pageSize), total);
+    }
+    
+    // 本页超出最近记录的范围时返回null，改为按索引查询
+    private HistoryPage queryRecent(UUID playerId, int page, int pageSize) {
+        int tailSize = Szkauhandler.getInstance().getConfigManager().getHistoryTailSize();
+        int skip = (page - 1) * pageSize;
+        int total;
+        synchronized (this) {
+            trimDeletedPositions();
+            LongArrayList list = positions.get(playerId);
+            total = list != null ? list.size() : 0;
+        }
+        if (total == 0) {
+            return new HistoryPage(Collections.emptyList(), page, 1, 0);
+        }
+        if (Math.min(skip + pageSize, total) > tailSize) {
+            return null;
+        }
+        List<TradeManager.TradeHistory> recent = loadTail(playerId);
+        // 最近记录中可能还留着已被保留策略删除的记录，只取索引中仍存在的条数
+        int oldest = recent.size() - Math.min(total, recent.size());
+        List<TradeManager.TradeHistory> records = new ArrayList<>(pageSize);
+        for (int i = recent.size() - 1 - skip; i >= oldest && records.size() < pageSize; i--) {
+            records.add(recent.get(i));
+        }
+        return new HistoryPage(records, page, pageCount(total, pageSize), total);
+    }
+    
+    private static boolean containsAll(long[][] arrays, int[] sizes, long position) {
+        for (int i = 1; i < arrays.length; i++) {
+            if (LongArrays.binarySearch(arrays[i], 0, sizes[i], position) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    private static int lowerBound(LongArrayList list, long key) {
+        return lowerBound(list.elements(), list.size(), key);
+    }
+    
+    // 第一个不小于key的下标
+    private static int lowerBound(long[] array, int size, long key) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (array[mid] < key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+    
+    private static int pageCount(int total, int pageSize) {
+        return Math.max(1, (total + pageSize - 1) / pageSize);
+    }
+    
+    // 位置按段号递增，已删除段的位置都在各列表开头；段被删除后在下一次查询时清理
+    private void trimDeletedPositions() {
+        long oldest = segments.isEmpty() ? Long.MAX_VALUE : segments.get(0).getSegmentId();
+        if (oldest == trimmedBelow) {
+            return;
+        }
+        long minPosition = segments.isEmpty() ? Long.MAX_VALUE : position(oldest, 0);
+        trim(positions, minPosition);
+        trim(itemPositions, minPosition);
+        trim(statusPositions, minPosition);
+        int drop = lowerBound(allPositions, minPosition);
+        if (drop > 0) {
+            allPositions = trimmedCopy(allPositions, drop);
+            allTimestamps = trimmedCopy(allTimestamps, drop);
+        }
+        columns.trimBelow(minPosition);
+        trimmedBelow = oldest;
+    }
+    
+    // 已删除的段先从列中裁掉，快照可以在锁外扫描
+    public synchronized HistoryColumns.View snapshotColumns() {
+        trimDeletedPositions();
+        return columns.snapshot(dictionary);
+    }
+    
+    private static <K> void trim(Map<K, LongArrayList> lists, long minPosition) {
+        Iterator<Map.Entry<K, LongArrayList>> iterator = lists.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<K, LongArrayList> entry = iterator.next();
+            LongArrayList list = entry.getValue();
+            int drop = lowerBound(list, minPosition);
+            if (drop == list.size()) {
+                iterator.remove();
+            } else if (drop > 0) {
+                entry.setValue(trimmedCopy(list, drop));
+            }
+        }
+    }
+    
+    // 复制到新列表而不是原地移动元素，正在锁外读取旧数组的查询不受影响
+    private static LongArrayList trimmedCopy(LongArrayList list, int drop) {
+        return new LongArrayList(list.elements(), drop, list.size() - drop);
+    }
+    
+    private TradeJournal findSegment(long segmentId) {
+        int low = 0;
+        int high = segments.size() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long id = segments.get(mid).getSegmentId();
+            if (id < segmentId) {
+                low = mid + 1;
+            } else if (id > segmentId) {
+                high = mid - 1;
+            } else {
+                return segments.get(mid);
+            }
+        }
+        return null;
+    }
+    
+    public void markOnline(UUID playerId) {
+        online.add(playerId);
+        releasedAt.remove(playerId);
+    }
+    
+    public void markOffline(UUID playerId) {
+        online.remove(playerId);
+        releasedAt.put(playerId, System.currentTimeMillis());
+    }
+    
+    // 预读在线玩家的最近记录；玩家在任务执行前已下线时跳过
+    public void warm(UUID playerId) {
+        if (online.contains(playerId)) {
+            loadTail(playerId);
+        }
+    }
+    
+    // 返回玩家的最近记录（按时间顺序），不在内存中时从日志读取，可能读盘
+    // 在锁内先放入空队列并确定要读取的位置，读盘在锁外进行；期间追加的记录进入队列末尾，读到的旧记录再补到队首
+    private List<TradeManager.TradeHistory> loadTail(UUID playerId) {
+        int tailSize = Szkauhandler.getInstance().getConfigManager().getHistoryTailSize();
+        ArrayDeque<TradeManager.TradeHistory> tail;
+        long[] tailPositions;
+        TradeJournal[] tailSegments;
+        HistoryDictionary tailDictionary;
+        synchronized (this) {
+            while (loadingTails.contains(playerId)) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return Collections.emptyList();
+                }
+            }
+            tail = tails.get(playerId);
+            if (tail != null) {
+                return new ArrayList<>(tail);
+            }
+            trimDeletedPositions();
+            LongArrayList list = positions.get(playerId);
+            int from = list != null ? Math.max(0, list.size() - tailSize) : 0;
+            tailPositions = list != null ? Arrays.copyOfRange(list.elements(), from, list.size()) : new long[0];
+            tailDictionary = dictionary;
+            tailSegments = new TradeJournal[tailPositions.length];
+            for (int i = 0; i < tailPositions.length; i++) {
+                tailSegments[i] = findSegment(tailPositions[i] >>> 32);
+            }
+            tail = new ArrayDeque<>();
+            tails.put(playerId, tail);
+            loadingTails.add(playerId);
+            evictTails();
+            ensureSyncScheduled();
+        }
+        List<TradeManager.TradeHistory> records = new ArrayList<>(tailPositions.length);
+        for (int i = 0; i < tailPositions.length; i++) {
+            if (tailSegments[i] == null) {
+                continue;
+            }
+            try {
+                records.add(tailSegments[i].read(tailPositions[i] & 0xFFFFFFFFL, tailDictionary));
+            } catch (IOException e) {
+                // 段可能刚被保留策略删除
+                LOGGER.warn("读取交易历史记录失败: {}", e.getMessage());
+            }
+        }
+        synchronized (this) {
+            for (int i = records.size() - 1; i >= 0; i--) {
+                tail.addFirst(records.get(i));
+            }
+            while (tail.size() > tailSize) {
+                tail.pollFirst();
+            }
+            loadingTails.remove(playerId);
+            notifyAll();
+            return new ArrayList<>(tail);
+        }
+    }
+    
+    // 淘汰下线超过保留时间的玩家，以及超出上限的最久未访问的离线玩家；在线玩家与正在读取的玩家不淘汰
+    private void evictTails() {
+        long now = System.currentTimeMillis();
+        int offline = 0;
+        for (UUID playerId : tails.keySet()) {
+            if (!online.contains(playerId) && !loadingTails.contains(playerId)) {
+                offline++;
+            }
+        }
+        Iterator<UUID> iterator = tails.keySet().iterator();
+        while (iterator.hasNext()) {
+            UUID playerId = iterator.next();
+            if (online.contains(playerId) || loadingTails.contains(playerId)) {
+                continue;
+            }
+            Long released = releasedAt.get(playerId);
+            if (offline > MAX_OFFLINE_TAILS || (released != null && now - released >= TAIL_EVICT_DELAY_MILLIS)) {
+                iterator.remove();
+                offline--;
+            }
+        }
+        releasedAt.keySet().removeIf(playerId -> !tails.containsKey(playerId));
+    }
+    
+    // 只追加到已在内存中的队列，其余玩家的最近记录在需要时从日志读取
+    private void addToTail(TradeManager.TradeHistory history) {
+        int tailSize = Szkauhandler.getInstance().getConfigManager().getHistoryTailSize();
+        addToTail(history.getInitiatorId(), history, tailSize);
+        if (!history.getTargetId().equals(history.getInitiatorId())) {
+            addToTail(history.getTargetId(), history, tailSize);
+        }
+    }
+    
+    private void addToTail(UUID playerId, TradeManager.TradeHistory history, int tailSize) {
+        ArrayDeque<TradeManager.TradeHistory> tail = tails.get(playerId);
+        if (tail == null) {
+            return;
+        }
+        tail.addLast(history);
+        while (tail.size() > tailSize) {
+            tail.pollFirst();
+        }
+    }
+    
+    private TradeJournal activeSegment() {
+        TradeJournal active = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        long now = System.currentTimeMillis();
+        if (active == null || active.size() >= SEGMENT_MAX_BYTES || now - active.getStartTime() >= SEGMENT_MAX_AGE_MILLIS) {
+            if (active != null) {
+                active.close();
+            }
+            long nextId = active != null ? active.getSegmentId() + 1 : 0;
+            active = new TradeJournal(segmentPath(nextId), nextId);
+            segments.add(active);
+            enforceRetention();
+        }
+        ensureSyncScheduled();
+        return active;
+    }
+    
+    // 删除超过保留天数或超出总条数上限的最旧段，当前写入的段始终保留
+    private void enforceRetention() {
+        ConfigManager config = Szkauhandler.getInstance().getConfigManager();
+        long cutoff = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(config.getHistoryRetentionDays());
+        long maxRecords = config.getHistoryMaxRecords();
+        long totalRecords = 0;
+        for (TradeJournal segment : segments) {
+            totalRecords += segment.getRecordCount();
+        }
+        while (segments.size() > 1) {
+            TradeJournal oldest = segments.get(0);
+            boolean expired = oldest.getRecordCount() == 0 || oldest.getLastTimestamp() < cutoff;
+            if (!expired && totalRecords <= maxRecords) {
+                break;
+            }
+            totalRecords -= oldest.getRecordCount();
+            oldest.delete();
+            segments.remove(0);
+            LOGGER.info("已按保留策略删除交易日志段 {}", oldest.getFile().getFileName());
+        }
+    }
+    
+    private Path segmentPath(long id) {
+        return directory.resolve(String.format("%010d%s", id, SEGMENT_SUFFIX));
+    }
+    
+    // 定期刷盘，避免在服务器线程上同步 fsync
+    private void ensureSyncScheduled() {
+        if (syncExecutor != null) {
+            return;
+        }
+        syncExecutor = Executors.newSingleThreadScheduledExecutor(SkhExecutors.daemonFactory("szkauhandler-journal-sync"));
+        syncExecutor.scheduleWithFixedDelay(this::sync, SYNC_INTERVAL_MILLIS, SYNC_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+    
+    // 刷盘后顺带淘汰过期的最近记录，被淘汰的记录此时都已落盘
+    private void sync() {
+        TradeJournal active;
+        synchronized (this) {
+            active = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        }
+        if (active != null) {
+            active.sync();
+        }
+        synchronized (this) {
+            evictTails();
+        }
+    }
+    
+    public synchronized void close() {
+        if (syncExecutor != null) {
+            syncExecutor.shutdown();
+            syncExecutor = null;
+        }
+        for (TradeJournal segment : segments) {
+            segment.close();
+        }
+        // 同一进程内再次开服时字典随回放重新建立，不会在多次开服之间无限增长
+        clearIndexes();
+        dictionary = new HistoryDictionary();
+    }
+    
+    public record HistoryPage(List<TradeManager.TradeHistory> records, int page, int totalPages, int total) {
+    }
+}
\ No newline at end of file
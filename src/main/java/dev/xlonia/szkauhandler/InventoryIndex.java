@@ -0,0 +1,199 @@
+package dev.xlonia.szkauhandler;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.server.level.ServerPlayer;
+import net.minecraft.world.entity.player.Inventory;
+import net.minecraft.world.item.Item;
+import net.minecraft.world.item.ItemStack;
+
+import java.util.*;
+
+// 一次遍历物品栏得到的统计：物品+NBT -> 所在槽位与总数，以及主物品栏中的空槽
+// 同一笔交易中的校验、移除、放入与结果核对都复用这份统计，不再反复扫描物品栏
+public class InventoryIndex {
+    private final Inventory inventory;
+    private final InventoryTransaction transaction;
+    private final int mainSize;
+    private final Map<Key, Entry> entries = new HashMap<>();
+    private final BitSet emptySlots = new BitSet();
+    private final Map<Integer, Placement> placements = new LinkedHashMap<>();
+    
+    private InventoryIndex(Inventory inventory) {
+        this.inventory = inventory;
+        this.transaction = new InventoryTransaction(inventory);
+        this.mainSize = inventory.items.size();
+        for (int slot = 0; slot < inventory.getContainerSize(); slot++) {
+            ItemStack stack = inventory.getItem(slot);
+            if (stack.isEmpty()) {
+                if (slot < mainSize) {
+                    emptySlots.set(slot);
+                }
+                continue;
+            }
+            Entry entry = entries.computeIfAbsent(Key.of(stack), k -> new Entry());
+            entry.slots.add(slot);
+            entry.total += stack.getCount();
+        }
+    }
+    
+    public static InventoryIndex of(ServerPlayer player) {
+        return new InventoryIndex(player.getInventory());
+    }
+    
+    public int count(ItemStack stack) {
+        Entry entry = entries.get(Key.of(stack));
+        return entry != null ? entry.total : 0;
+    }
+    
+    // 同种物品的需求会合并计算
+    public boolean has(ItemStack... stacks) {
+        Map<Key, Integer> required = new HashMap<>();
+        for (ItemStack stack : stacks) {
+            if (!stack.isEmpty()) {
+                required.merge(Key.of(stack), stack.getCount(), Integer::sum);
+            }
+        }
+        for (Map.Entry<Key, Integer> need : required.entrySet()) {
+            Entry entry = entries.get(need.getKey());
+            if (entry == null || entry.total < need.getValue()) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    // 按槽位顺序移除指定数量，数量不足时不做任何修改
+    public boolean remove(ItemStack stack) {
+        Entry entry = entries.get(Key.of(stack));
+        int remaining = stack.getCount();
+        if (entry == null || entry.total < remaining) {
+            return false;
+        }
+        for (int i = 0; i < entry.slots.size() && remaining > 0; ) {
+            int slot = entry.slots.getInt(i);
+            transaction.touch(slot);
+            ItemStack current = inventory.getItem(slot);
+            int take = Math.min(current.getCount(), remaining);
+            current.shrink(take);
+            remaining -= take;
+            if (current.isEmpty()) {
+                entry.slots.removeInt(i);
+                if (slot < mainSize) {
+                    emptySlots.set(slot);
+                }
+            } else {
+                i++;
+            }
+        }
+        entry.total -= stack.getCount();
+        inventory.setChanged();
+        return true;
+    }
+    
+    // 先堆叠到已有的同种物品上，再依次放入空槽；空间不足时返回false
+    public boolean add(ItemStack stack) {
+        Key key = Key.of(stack);
+        Entry entry = entries.computeIfAbsent(key, k -> new Entry());
+        ItemStack remaining = stack.copy();
+        int maxStackSize = Math.min(remaining.getMaxStackSize(), inventory.getMaxStackSize());
+        
+        if (remaining.isStackable()) {
+            for (int i = 0; i < entry.slots.size() && !remaining.isEmpty(); i++) {
+                int slot = entry.slots.getInt(i);
+                if (slot >= mainSize) {
+                    continue;
+                }
+                ItemStack current = inventory.getItem(slot);
+                int put = Math.min(maxStackSize - current.getCount(), remaining.getCount());
+                if (put > 0) {
+                    transaction.touch(slot);
+                    current.grow(put);
+                    remaining.shrink(put);
+                    recordPlacement(slot, current);
+                }
+            }
+        }
+        
+        while (!remaining.isEmpty()) {
+            int slot = emptySlots.nextSetBit(0);
+            if (slot < 0) {
+                inventory.setChanged();
+                return false;
+            }
+            int put = Math.min(maxStackSize, remaining.getCount());
+            ItemStack placed = remaining.copy();
+            placed.setCount(put);
+            remaining.shrink(put);
+            transaction.touch(slot);
+            inventory.setItem(slot, placed);
+            emptySlots.clear(slot);
+            entry.slots.add(slot);
+            recordPlacement(slot, placed);
+        }
+        entry.total += stack.getCount();
+        inventory.setChanged();
+        return true;
+    }
+    
+    private void recordPlacement(int slot, ItemStack current) {
+        placements.put(slot, new Placement(current.copy(), current.getCount()));
+    }
+    
+    // 核对本次放入的槽位是否仍是预期的物品和数量
+    public boolean verifyPlacements() {
+        for (Map.Entry<Integer, Placement> placement : placements.entrySet()) {
+            ItemStack current = inventory.getItem(placement.getKey());
+            if (!ItemStack.isSameItemSameTags(current, placement.getValue().template)
+                    || current.getCount() != placement.getValue().count) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    // 撤销通过本索引做出的全部修改，之后不应再继续使用本索引
+    public void rollback() {
+        transaction.rollback();
+    }
+    
+    private static final class Entry {
+        private final IntArrayList slots = new IntArrayList(4);
+        private int total;
+    }
+    
+    private record Placement(ItemStack template, int count) {
+    }
+    
+    private static final class Key {
+        private final Item item;
+        private final CompoundTag tag;
+        private final int hash;
+        
+        private Key(Item item, CompoundTag tag) {
+            this.item = item;
+            this.tag = tag;
+            this.hash = 31 * System.identityHashCode(item) + Objects.hashCode(tag);
+        }
+        
+        static Key of(ItemStack stack) {
+            return new Key(stack.getItem(), stack.getTag());
+        }
+        
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key other)) {
+                return false;
+            }
+            return item == other.item && Objects.equals(tag, other.tag);
+        }
+        
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
\ No newline at end of file
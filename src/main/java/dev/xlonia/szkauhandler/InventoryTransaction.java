@@ -0,0 +1,32 @@
+package dev.xlonia.szkauhandler;
+
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import net.minecraft.world.entity.player.Inventory;
+import net.minecraft.world.item.ItemStack;
+
+// 物品栏的槽位日志：每个槽位在第一次被修改前记录一次原始内容
+// 回滚时只写回被修改过的槽位，其余槽位不做任何复制
+public class InventoryTransaction {
+    private final Inventory inventory;
+    private final Int2ObjectOpenHashMap<ItemStack> originals = new Int2ObjectOpenHashMap<>();
+    
+    public InventoryTransaction(Inventory inventory) {
+        this.inventory = inventory;
+    }
+    
+    // 修改槽位前调用
+    public void touch(int slot) {
+        if (!originals.containsKey(slot)) {
+            originals.put(slot, inventory.getItem(slot).copy());
+        }
+    }
+    
+    public void rollback() {
+        for (Int2ObjectMap.Entry<ItemStack> entry : originals.int2ObjectEntrySet()) {
+            inventory.setItem(entry.getIntKey(), entry.getValue());
+        }
+        originals.clear();
+        inventory.setChanged();
+    }
+}
\ No newline at end of file
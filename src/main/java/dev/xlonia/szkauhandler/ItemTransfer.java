@@ -0,0 +1,100 @@
+package dev.xlonia.szkauhandler;
+
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.nbt.ListTag;
+import net.minecraft.nbt.Tag;
+import net.minecraft.server.level.ServerPlayer;
+import net.minecraft.world.item.ItemStack;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.UUID;
+
+// 在线玩家与托管方之间的一次物品交换，玩家之间的交易与市场购买共用同一套步骤：
+// 1. 校验：玩家付出的物品不在全服或该玩家的禁止列表中，物品栏中的数量足够
+// 2. 移除付出的物品、放入得到的物品，修改都记录在 InventoryIndex 的槽位日志中
+// 3. 只核对本次放入过物品的槽位；任一步失败都按日志回滚，不留下部分修改
+// 线程约定：只在服务器线程上调用
+public final class ItemTransfer {
+    private static final Logger LOGGER = LogManager.getLogger();
+    
+    // 成功、校验不通过、转移后核对不一致（均已回滚）
+    public enum Result {
+        SUCCESS, INVALID, INCONSISTENT
+    }
+    
+    private ItemTransfer() {
+    }
+    
+    // 从玩家处取走 taken 中的物品（空物品跳过，同种物品合并计算），放入 given
+    public static Result exchange(ServerPlayer player, ItemStack given, ItemStack... taken) {
+        for (ItemStack stack : taken) {
+            if (!stack.isEmpty() && isBlocked(stack, player.getUUID())) {
+                return Result.INVALID;
+            }
+        }
+        InventoryIndex index = InventoryIndex.of(player);
+        if (!index.has(taken)) {
+            return Result.INVALID;
+        }
+        try {
+            for (ItemStack stack : taken) {
+                if (!stack.isEmpty() && !index.remove(stack)) {
+                    throw new IllegalStateException("无法移除物品 " + stack.getItem());
+                }
+            }
+            if (!index.add(given.copy())) {
+                throw new IllegalStateException("物品栏空间不足");
+            }
+        } catch (Throwable t) {
+            // 只恢复被修改过的槽位
+            rollback(index);
+            return Result.INVALID;
+        }
+        if (!index.verifyPlacements()) {
+            rollback(index);
+            return Result.INCONSISTENT;
+        }
+        return Result.SUCCESS;
+    }
+    
+    private static void rollback(InventoryIndex index) {
+        try {
+            index.rollback();
+        } catch (Throwable rollbackError) {
+            LOGGER.error("物品转移回滚失败: {}", rollbackError.getMessage());
+        }
+    }
+    
+    // 物品本身或潜影盒中的物品在全服或该玩家的禁止列表中；挂单与托管期间禁止列表可能变化，交付前需要重新检查
+    public static boolean isBlocked(ItemStack stack, UUID playerId) {
+        return Szkauhandler.getInstance().getConfigManager().isItemBlocked(stack.getItem().getDescriptionId(), playerId)
+                || !validateShulkerBox(stack, playerId);
+    }
+    
+    // 潜影盒中的物品同样要符合禁止列表，数量异常的内容视为不合法
+    public static boolean validateShulkerBox(ItemStack shulkerBox, UUID playerId) {
+        if (!shulkerBox.getItem().toString().contains("shulker_box")) {
+            return true;
+        }
+        
+        CompoundTag tag = shulkerBox.getTagElement("BlockEntityTag");
+        if (tag == null) {
+            return true;
+        }
+        
+        ListTag items = tag.getList("Items", Tag.TAG_COMPOUND);
+        for (Tag itemTag : items) {
+            ItemStack innerStack = ItemStack.of((CompoundTag) itemTag);
+            if (Szkauhandler.getInstance().getConfigManager().isItemBlocked(
+                    innerStack.getItem().getDescriptionId(), playerId)) {
+                return false;
+            }
+            if (innerStack.getCount() <= 0) {
+                return false;
+            }
+        }
+        
+        return true;
+    }
+}
\ No newline at end of file
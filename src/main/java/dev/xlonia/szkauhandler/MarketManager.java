@@ -0,0 +1,818 @@
+package dev.xlonia.szkauhandler;
+
+import net.minecraft.core.registries.BuiltInRegistries;
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.nbt.ListTag;
+import net.minecraft.nbt.NbtIo;
+import net.minecraft.nbt.Tag;
+import net.minecraft.network.chat.Component;
+import net.minecraft.resources.ResourceLocation;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.server.level.ServerPlayer;
+import net.minecraft.world.item.Item;
+import net.minecraft.world.item.ItemStack;
+import net.minecraftforge.event.TickEvent;
+import net.minecraftforge.eventbus.api.SubscribeEvent;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+// 公开挂单市场：每种物品、每种货币一份订单簿，卖单按单价从低到高、买单按单价从高到低排列，同价按挂单时间
+// 查询最优价、插入与撤单都是 TreeSet 上的对数时间操作
+// 卖单的物品和买单的货币在挂单时托管，成交时不需要双方在线，所得通过 EscrowStore 交付
+// 订单与 EscrowStore 的交易托管、邮箱写在同一份快照（escrow.dat）中，一次原子替换，崩溃时不会出现订单与托管物品不一致
+// 线程约定：所有方法只在服务器线程上调用
+public class MarketManager {
+    private static final Logger LOGGER = LogManager.getLogger();
+    public static final int MAX_ORDERS_PER_PLAYER = 20;
+    // 一个买单最多求购的数量
+    public static final int MAX_BID_COUNT = 64 * 36;
+    // 挂单/买单的总价上限，同样以一整个物品栏为限
+    public static final int MAX_PRICE = 64 * 36;
+    // 市价购买时最多检查的卖单数，跳过自己的卖单
+    private static final int MAX_BUY_ATTEMPTS = 5;
+    // 每tick撮合时最多检查的买卖单对数，超出的留到下一tick继续
+    private static final int MATCH_BUDGET = 256;
+    private static final Comparator<Listing> ASK_ORDER = Comparator
+            .comparingDouble(Listing::getUnitPrice)
+            .thenComparingLong(Listing::getCreatedTime)
+            .thenComparingLong(Listing::getId);
+    private static final Comparator<Bid> BID_ORDER = Comparator
+            .comparingDouble((Bid bid) -> -bid.getUnitPrice())
+            .thenComparingLong(Bid::getCreatedTime)
+            .thenComparingLong(Bid::getId);
+    
+    // 旧版本单独保存订单的文件，只在 escrow.dat 中还没有订单时读取一次，合并写盘后删除
+    private final Path legacyFile;
+    // 物品ID -> 货币简码 -> 订单簿
+    private final Map<String, Map<String, Book>> books = new HashMap<>();
+    private final Map<Long, Listing> listings = new HashMap<>();
+    private final Map<Long, Bid> bids = new HashMap<>();
+    // 玩家 -> 其卖单与买单的编号
+    private final Map<UUID, Set<Long>> ownerIndex = new HashMap<>();
+    // 有新订单、可能出现可成交价格的订单簿
+    private final Set<BookKey> pendingMatches = new LinkedHashSet<>();
+    // 物品或货币无法识别（例如模组被移除）的挂单的原始数据，保存时原样写回，不参与撮合
+    private final List<CompoundTag> unresolvedListings = new ArrayList<>();
+    private final List<CompoundTag> unresolvedBids = new ArrayList<>();
+    private long nextId = 1;
+    private int matchBudget;
+    
+    public MarketManager(Path legacyFile) {
+        this.legacyFile = legacyFile;
+    }
+    
+    public static String itemKey(Item item) {
+        return BuiltInRegistries.ITEM.getKey(item).toString();
+    }
+    
+    // 把玩家输入的物品ID（可省略minecraft:）或交易简码解析为物品ID，无法识别时返回null
+    public static String resolveItemKey(String input) {
+        ConfigManager configManager = Szkauhandler.getInstance().getConfigManager();
+        if (configManager.isCurrencyCode(input)) {
+            Item currencyItem = configManager.getCurrencyItem(input);
+            return currencyItem != null ? itemKey(currencyItem) : null;
+        }
+        ResourceLocation id = ResourceLocation.tryParse(input.toLowerCase(Locale.ROOT));
+        if (id == null || !BuiltInRegistries.ITEM.containsKey(id)) {
+            return null;
+        }
+        return id.toString();
+    }
+    
+    static Item resolveItem(String itemKey) {
+        ResourceLocation id = ResourceLocation.tryParse(itemKey);
+        return id != null && BuiltInRegistries.ITEM.containsKey(id) ? BuiltInRegistries.ITEM.get(id) : null;
+    }
+    
+    private static EscrowStore escrow() {
+        return Szkauhandler.getInstance().getEscrowStore();
+    }
+    
+    // 调用方已从玩家处取走物品，物品由挂单托管
+    public Listing createListing(ServerPlayer seller, ItemStack stack, String currency, int price) {
+        Listing listing = new Listing(nextId++, seller.getUUID(), seller.getName().getString(), stack.copy(),
+                currency, price, System.currentTimeMillis());
+        addListing(listing);
+        markDirty();
+        return listing;
+    }
+    
+    // 调用方已从玩家处取走 price 个货币物品，由买单托管
+    public Bid createBid(ServerPlayer bidder, Item item, int count, String currency, Item currencyItem, int price) {
+        Bid bid = new Bid(nextId++, bidder.getUUID(), bidder.getName().getString(), item, count, count,
+                currency, currencyItem, price, price, System.currentTimeMillis());
+        addBid(bid);
+        markDirty();
+        return bid;
+    }
+    
+    private void addListing(Listing listing) {
+        listings.put(listing.getId(), listing);
+        ownerIndex.computeIfAbsent(listing.getSellerId(), k -> new LinkedHashSet<>()).add(listing.getId());
+        Book book = getOrCreateBook(listing.getItemKey(), listing.getCurrency());
+        book.asks.add(listing);
+        // 新卖单可能与已扫描过的任一买单成交，从头扫描
+        book.resumeBid = null;
+        book.resumeAsk = null;
+        if (!book.bids.isEmpty()) {
+            pendingMatches.add(new BookKey(listing.getItemKey(), listing.getCurrency()));
+        }
+    }
+    
+    private void addBid(Bid bid) {
+        bids.put(bid.getId(), bid);
+        ownerIndex.computeIfAbsent(bid.getBidderId(), k -> new LinkedHashSet<>()).add(bid.getId());
+        Book book = getOrCreateBook(bid.getItemKey(), bid.getCurrency());
+        book.bids.add(bid);
+        // 新买单排在扫描位置之前时，从新买单开始扫描
+        if (book.resumeBid != null && BID_ORDER.compare(bid, book.resumeBid) < 0) {
+            book.resumeBid = bid;
+            book.resumeAsk = null;
+        }
+        if (!book.asks.isEmpty()) {
+            pendingMatches.add(new BookKey(bid.getItemKey(), bid.getCurrency()));
+        }
+    }
+    
+    private Book getOrCreateBook(String itemKey, String currency) {
+        return books.computeIfAbsent(itemKey, k -> new HashMap<>()).computeIfAbsent(currency, k -> new Book());
+    }
+    
+    private Book getBook(String itemKey, String currency) {
+        Map<String, Book> byCurrency = books.get(itemKey);
+        return byCurrency != null ? byCurrency.get(currency) : null;
+    }
+    
+    private void removeBookIfEmpty(String itemKey, String currency) {
+        Map<String, Book> byCurrency = books.get(itemKey);
+        if (byCurrency == null) {
+            return;
+        }
+        Book book = byCurrency.get(currency);
+        if (book != null && book.asks.isEmpty() && book.bids.isEmpty()) {
+            byCurrency.remove(currency);
+            if (byCurrency.isEmpty()) {
+                books.remove(itemKey);
+            }
+        }
+    }
+    
+    private void unindexOwner(UUID ownerId, long id) {
+        Set<Long> ids = ownerIndex.get(ownerId);
+        if (ids != null) {
+            ids.remove(id);
+            if (ids.isEmpty()) {
+                ownerIndex.remove(ownerId);
+            }
+        }
+    }
+    
+    // 只从订单簿中移除，托管的物品由调用方处理
+    private Listing removeListing(long id) {
+        Listing listing = listings.remove(id);
+        if (listing == null) {
+            return null;
+        }
+        unindexOwner(listing.getSellerId(), id);
+        Book book = getBook(listing.getItemKey(), listing.getCurrency());
+        if (book != null) {
+            book.asks.remove(listing);
+            removeBookIfEmpty(listing.getItemKey(), listing.getCurrency());
+        }
+        markDirty();
+        return listing;
+    }
+    
+    private Bid removeBid(long id) {
+        Bid bid = bids.remove(id);
+        if (bid == null) {
+            return null;
+        }
+        unindexOwner(bid.getBidderId(), id);
+        Book book = getBook(bid.getItemKey(), bid.getCurrency());
+        if (book != null) {
+            book.bids.remove(bid);
+            removeBookIfEmpty(bid.getItemKey(), bid.getCurrency());
+        }
+        markDirty();
+        return bid;
+    }
+    
+    public Listing getListing(long id) {
+        return listings.get(id);
+    }
+    
+    public Bid getBid(long id) {
+        return bids.get(id);
+    }
+    
+    // 撤下自己的卖单或买单，退回托管的物品或剩余货币
+    public boolean cancel(ServerPlayer player, long id) {
+        Listing listing = listings.get(id);
+        if (listing != null && listing.getSellerId().equals(player.getUUID())) {
+            removeListing(id);
+            escrow().deliver(player.getServer(), player.getUUID(), listing.getItem(), "撤下挂单 #" + id);
+            return true;
+        }
+        Bid bid = bids.get(id);
+        if (bid != null && bid.getBidderId().equals(player.getUUID())) {
+            removeBid(id);
+            escrow().deliver(player.getServer(), player.getUUID(), bid.getRemainingFunds(), "撤下买单 #" + id);
+            return true;
+        }
+        return false;
+    }
+    
+    public int countOrders(UUID playerId) {
+        Set<Long> ids = ownerIndex.get(playerId);
+        return ids != null ? ids.size() : 0;
+    }
+    
+    public List<Listing> getListings(UUID sellerId) {
+        List<Listing> result = new ArrayList<>();
+        for (long id : ownerIndex.getOrDefault(sellerId, Collections.emptySet())) {
+            Listing listing = listings.get(id);
+            if (listing != null) {
+                result.add(listing);
+            }
+        }
+        return result;
+    }
+    
+    public List<Bid> getBids(UUID bidderId) {
+        List<Bid> result = new ArrayList<>();
+        for (long id : ownerIndex.getOrDefault(bidderId, Collections.emptySet())) {
+            Bid bid = bids.get(id);
+            if (bid != null) {
+                result.add(bid);
+            }
+        }
+        return result;
+    }
+    
+    public Listing cheapest(String itemKey, String currency) {
+        Book book = getBook(itemKey, currency);
+        return book != null && !book.asks.isEmpty() ? book.asks.first() : null;
+    }
+    
+    public Bid highestBid(String itemKey, String currency) {
+        Book book = getBook(itemKey, currency);
+        return book != null && !book.bids.isEmpty() ? book.bids.first() : null;
+    }
+    
+    public Set<String> getCurrencies(String itemKey) {
+        Map<String, Book> byCurrency = books.get(itemKey);
+        return byCurrency != null ? new TreeSet<>(byCurrency.keySet()) : Collections.emptySet();
+    }
+    
+    public int getAskCount(String itemKey, String currency) {
+        Book book = getBook(itemKey, currency);
+        return book != null ? book.asks.size() : 0;
+    }
+    
+    public int getBidCount(String itemKey, String currency) {
+        Book book = getBook(itemKey, currency);
+        return book != null ? book.bids.size() : 0;
+    }
+    
+    // 卖单按单价从低到高分页（page从1开始）
+    public List<Listing> browse(String itemKey, String currency, int page, int pageSize) {
+        Book book = getBook(itemKey, currency);
+        return book != null ? slice(book.asks, page, pageSize) : Collections.emptyList();
+    }
+    
+    // 买单按单价从高到低分页（page从1开始）
+    public List<Bid> browseBids(String itemKey, String currency, int page, int pageSize) {
+        Book book = getBook(itemKey, currency);
+        return book != null ? slice(book.bids, page, pageSize) : Collections.emptyList();
+    }
+    
+    private static <T> List<T> slice(TreeSet<T> orders, int page, int pageSize) {
+        List<T> result = new ArrayList<>(pageSize);
+        int skip = (page - 1) * pageSize;
+        for (T order : orders) {
+            if (skip > 0) {
+                skip--;
+                continue;
+            }
+            if (result.size() >= pageSize) {
+                break;
+            }
+            result.add(order);
+        }
+        return result;
+    }
+    
+    // 购买指定编号的卖单
+    public boolean buy(ServerPlayer buyer, long id) {
+        Listing listing = listings.get(id);
+        if (listing == null) {
+            buyer.sendSystemMessage(Component.literal("挂单不存在或已售出"));
+            return false;
+        }
+        if (listing.getSellerId().equals(buyer.getUUID())) {
+            buyer.sendSystemMessage(Component.literal("不能购买自己的挂单"));
+            return false;
+        }
+        return fill(buyer, listing);
+    }
+    
+    // 按价格优先、时间优先购买最便宜的卖单，跳过自己的卖单
+    public boolean buyCheapest(ServerPlayer buyer, String itemKey, String currency) {
+        Book book = getBook(itemKey, currency);
+        if (book != null) {
+            int attempts = 0;
+            for (Listing listing : book.asks) {
+                if (attempts++ >= MAX_BUY_ATTEMPTS) {
+                    break;
+                }
+                if (!listing.getSellerId().equals(buyer.getUUID())) {
+                    return fill(buyer, listing);
+                }
+            }
+        }
+        buyer.sendSystemMessage(Component.literal("没有可购买的挂单"));
+        return false;
+    }
+    
+    // 买家从物品栏付款并收下托管的物品，与玩家之间的交易一样经 ItemTransfer 校验、转移并核对，失败时回滚；
+    // 货款交付给卖家（不在线时存入邮箱）
+    private boolean fill(ServerPlayer buyer, Listing listing) {
+        MinecraftServer server = buyer.getServer();
+        if (cancelIfBlocked(server, listing)) {
+            buyer.sendSystemMessage(Component.literal("该挂单的物品已被禁止交易，挂单已撤下"));
+            return false;
+        }
+        if (ItemTransfer.isBlocked(listing.getItem(), buyer.getUUID())) {
+            buyer.sendSystemMessage(Component.literal("你不能购买被禁止交易的物品"));
+            return false;
+        }
+        Item currencyItem = Szkauhandler.getInstance().getConfigManager().getCurrencyItem(listing.getCurrency());
+        if (currencyItem == null) {
+            buyer.sendSystemMessage(Component.literal("挂单的交易简码已失效"));
+            return false;
+        }
+        ItemStack payment = new ItemStack(currencyItem, listing.getPrice());
+        ItemTransfer.Result result = ItemTransfer.exchange(buyer, listing.getItem(), payment);
+        if (result == ItemTransfer.Result.INCONSISTENT) {
+            buyer.sendSystemMessage(Component.literal("购买失败，物品转移结果与约定不一致"));
+            return false;
+        }
+        if (result != ItemTransfer.Result.SUCCESS) {
+            buyer.sendSystemMessage(Component.literal("购买失败，物品栏中没有足够的货币、空间不足或货币已被禁止交易"));
+            return false;
+        }
+        
+        removeListing(listing.getId());
+        escrow().deliver(server, listing.getSellerId(), payment, "挂单 #" + listing.getId() + " 已售出");
+        Szkauhandler.getInstance().getTradeManager().recordMarketTrade(listing.getSellerId(), buyer.getUUID(),
+                listing.getItem(), listing.getCurrency(), listing.getPrice(), "市场挂单 #" + listing.getId());
+        buyer.sendSystemMessage(Component.literal(String.format("购买成功：[%s] x%d，花费 %s x%d",
+                listing.getItem().getHoverName().getString(), listing.getItem().getCount(),
+                listing.getCurrency(), listing.getPrice())));
+        return true;
+    }
+    
+    // 挂单后物品可能被加入全服或卖家的禁止列表：撤下卖单并把托管的物品退回卖家
+    private boolean cancelIfBlocked(MinecraftServer server, Listing listing) {
+        if (!ItemTransfer.isBlocked(listing.getItem(), listing.getSellerId())) {
+            return false;
+        }
+        removeListing(listing.getId());
+        escrow().deliver(server, listing.getSellerId(), listing.getItem(), "挂单 #" + listing.getId() + " 的物品已被禁止交易，已撤下");
+        return true;
+    }
+    
+    // 买单求购的物品或付款的货币被禁止时撤下买单，退回剩余的托管货币
+    private boolean cancelIfBlocked(MinecraftServer server, Bid bid) {
+        ConfigManager config = Szkauhandler.getInstance().getConfigManager();
+        if (!config.isItemBlocked(bid.getItem().getDescriptionId(), bid.getBidderId())
+                && !config.isItemBlocked(bid.getCurrencyItem().getDescriptionId(), bid.getBidderId())) {
+            return false;
+        }
+        removeBid(bid.getId());
+        escrow().deliver(server, bid.getBidderId(), bid.getRemainingFunds(), "买单 #" + bid.getId() + " 的物品或货币已被禁止交易，已撤下");
+        return true;
+    }
+    
+    // 卖单单价不高于买单限价
+    private static boolean crosses(Listing listing, Bid bid) {
+        return (long) listing.getPrice() * bid.getCount() <= (long) bid.getPrice() * listing.getItem().getCount();
+    }
+    
+    // 买单只按物品ID求购，只与没有NBT的整组卖单成交
+    private static boolean fits(Listing listing, Bid bid) {
+        return !listing.getItem().hasTag()
+                && listing.getItem().getCount() <= bid.getRemaining()
+                && !listing.getSellerId().equals(bid.getBidderId());
+    }
+    
+    private void runMatching(MinecraftServer server) {
+        matchBudget = MATCH_BUDGET;
+        BookKey unfinished = null;
+        Iterator<BookKey> iterator = pendingMatches.iterator();
+        while (iterator.hasNext() && matchBudget > 0) {
+            BookKey key = iterator.next();
+            Book book = getBook(key.itemKey(), key.currency());
+            iterator.remove();
+            if (book != null && matchBook(server, book)) {
+                unfinished = key;
+            }
+        }
+        // 没扫完的订单簿排到队尾，下一tick先处理其他订单簿
+        if (unfinished != null) {
+            pendingMatches.add(unfinished);
+        }
+    }
+    
+    // 按价格优先、时间优先撮合一份订单簿，从上次停下的位置继续；预算用完时记下位置并返回true
+    // 成交只会移除订单或减少买单的剩余数量，扫描过的无法成交的买卖单对之后也不会成交，不需要重新检查
+    // 每次成交前重新检查双方的禁止列表，被禁止的订单撤下并退回托管物品，撤单同样只会移除订单
+    private boolean matchBook(MinecraftServer server, Book book) {
+        Bid bid = book.resumeBid != null ? book.bids.ceiling(book.resumeBid) : (book.bids.isEmpty() ? null : book.bids.first());
+        Listing from = bid != null && bid == book.resumeBid ? book.resumeAsk : null;
+        while (bid != null) {
+            // 最便宜的卖单也高于此买单的限价，更低的买单同样无法成交
+            if (book.asks.isEmpty() || !crosses(book.asks.first(), bid)) {
+                break;
+            }
+            Listing listing = from != null ? book.asks.ceiling(from) : book.asks.first();
+            from = null;
+            if (cancelIfBlocked(server, bid)) {
+                // 已移除的买单仍可按排序位置查找下一个
+                bid = book.bids.higher(bid);
+                continue;
+            }
+            while (listing != null) {
+                if (matchBudget <= 0) {
+                    book.resumeBid = bid;
+                    book.resumeAsk = listing;
+                    return true;
+                }
+                matchBudget--;
+                if (!crosses(listing, bid)) {
+                    break;
+                }
+                Listing next = book.asks.higher(listing);
+                if (fits(listing, bid) && !cancelIfBlocked(server, listing)) {
+                    match(server, listing, bid);
+                    if (bid.getRemaining() == 0) {
+                        break;
+                    }
+                }
+                listing = next;
+            }
+            // 按排序位置查找，买单已成交移除时同样适用
+            bid = book.bids.higher(bid);
+        }
+        book.resumeBid = null;
+        book.resumeAsk = null;
+        return false;
+    }
+    
+    // 以先挂出的一方的价格成交；买单按限价付款时向下取整，托管的货币总是够付
+    private void match(MinecraftServer server, Listing ask, Bid bid) {
+        int count = ask.getItem().getCount();
+        int price = ask.getCreatedTime() <= bid.getCreatedTime()
+                ? ask.getPrice()
+                : (int) ((long) bid.getPrice() * count / bid.getCount());
+        
+        removeListing(ask.getId());
+        bid.fill(count, price);
+        markDirty();
+        if (bid.getRemaining() == 0) {
+            removeBid(bid.getId());
+        }
+        
+        ItemStack payment = new ItemStack(bid.getCurrencyItem(), price);
+        escrow().deliver(server, ask.getSellerId(), payment, "挂单 #" + ask.getId() + " 已售出");
+        escrow().deliver(server, bid.getBidderId(), ask.getItem(), "买单 #" + bid.getId() + " 成交");
+        if (bid.getRemaining() == 0) {
+            escrow().deliver(server, bid.getBidderId(), bid.getRemainingFunds(), "买单 #" + bid.getId() + " 已完成，退回剩余货币");
+        }
+        Szkauhandler.getInstance().getTradeManager().recordMarketTrade(ask.getSellerId(), bid.getBidderId(),
+                ask.getItem(), ask.getCurrency(), price, "买单 #" + bid.getId() + " 成交挂单 #" + ask.getId());
+    }
+    
+    @SubscribeEvent
+    public void onServerTick(TickEvent.ServerTickEvent event) {
+        if (event.phase != TickEvent.Phase.END) {
+            return;
+        }
+        if (!pendingMatches.isEmpty()) {
+            runMatching(event.getServer());
+        }
+    }
+    
+    // 订单变动由 EscrowStore 合并写盘
+    private void markDirty() {
+        escrow().markDirty();
+    }
+    
+    // 由 EscrowStore 在服务器线程上生成快照时调用
+    CompoundTag save() {
+        CompoundTag root = new CompoundTag();
+        root.putLong("NextId", nextId);
+        ListTag listingList = new ListTag();
+        for (Listing listing : listings.values()) {
+            listingList.add(listing.save());
+        }
+        root.put("Listings", listingList);
+        ListTag bidList = new ListTag();
+        for (Bid bid : bids.values()) {
+            bidList.add(bid.save());
+        }
+        // 无法识别的挂单原样写回，对应的模组恢复后即可重新加载
+        for (CompoundTag tag : unresolvedListings) {
+            listingList.add(tag.copy());
+        }
+        for (CompoundTag tag : unresolvedBids) {
+            bidList.add(tag.copy());
+        }
+        root.put("Bids", bidList);
+        return root;
+    }
+    
+    // 合并后的快照已经落盘，旧的订单文件不再需要；在后台IO线程上调用
+    void deleteLegacyFile() {
+        try {
+            Files.deleteIfExists(legacyFile);
+        } catch (IOException e) {
+            LOGGER.warn("删除旧市场挂单文件失败: {}", e.getMessage());
+        }
+    }
+    
+    // 由 EscrowStore 在加载完托管与邮箱之后调用；root 为 escrow.dat 中的订单，没有时尝试旧版本的订单文件
+    void load(CompoundTag root) {
+        // 同一进程内重新开服（单人游戏/局域网）时内存中还留着上次的挂单，新世界没有存档时也要清空
+        listings.clear();
+        bids.clear();
+        ownerIndex.clear();
+        books.clear();
+        pendingMatches.clear();
+        unresolvedListings.clear();
+        unresolvedBids.clear();
+        nextId = 1;
+        if (root == null) {
+            if (!Files.exists(legacyFile)) {
+                return;
+            }
+            try {
+                root = NbtIo.readCompressed(legacyFile.toFile());
+            } catch (IOException e) {
+                LOGGER.error("加载市场挂单失败: {}", e.getMessage());
+                return;
+            }
+            // 尽快写入合并后的快照
+            markDirty();
+        }
+        nextId = Math.max(1, root.getLong("NextId"));
+        ListTag listingList = root.getList("Listings", Tag.TAG_COMPOUND);
+        for (int i = 0; i < listingList.size(); i++) {
+            CompoundTag tag = listingList.getCompound(i);
+            Listing listing = Listing.load(tag);
+            nextId = Math.max(nextId, listing.getId() + 1);
+            if (listing.getItem().isEmpty()) {
+                // 物品本身无法识别，无法退回，保留原始数据
+                LOGGER.warn("挂单 #{} 的物品无法识别，暂不加载", listing.getId());
+                unresolvedListings.add(tag);
+                continue;
+            }
+            addListing(listing);
+            nextId = Math.max(nextId, listing.getId() + 1);
+        }
+        ListTag bidList = root.getList("Bids", Tag.TAG_COMPOUND);
+        for (int i = 0; i < bidList.size(); i++) {
+            CompoundTag tag = bidList.getCompound(i);
+            Item item = resolveItem(tag.getString("Item"));
+            Item currencyItem = resolveItem(tag.getString("CurrencyItem"));
+            nextId = Math.max(nextId, tag.getLong("Id") + 1);
+            if (currencyItem == null) {
+                LOGGER.warn("买单 #{} 的货币无法识别，暂不加载", tag.getLong("Id"));
+                unresolvedBids.add(tag);
+                continue;
+            }
+            if (item == null) {
+                // 求购的物品已不存在，买单无法成交，托管的货币退回邮箱
+                LOGGER.warn("买单 #{} 求购的物品无法识别，已退回托管的货币", tag.getLong("Id"));
+                escrow().mail(tag.getUUID("Bidder"), new ItemStack(currencyItem, tag.getInt("Funds")));
+                markDirty();
+                continue;
+            }
+            Bid bid = Bid.load(tag, item, currencyItem);
+            addBid(bid);
+            nextId = Math.max(nextId, bid.getId() + 1);
+        }
+        LOGGER.info("已加载 {} 个市场卖单、{} 个买单", listings.size(), bids.size());
+    }
+    
+    private record BookKey(String itemKey, String currency) {
+    }
+    
+    private static class Book {
+        private final TreeSet<Listing> asks = new TreeSet<>(ASK_ORDER);
+        private final TreeSet<Bid> bids = new TreeSet<>(BID_ORDER);
+        // 撮合从此买单、此卖单处继续，为null时从头扫描
+        private Bid resumeBid;
+        private Listing resumeAsk;
+    }
+    
+    public static class Listing {
+        private final long id;
+        private final UUID sellerId;
+        private final String sellerName;
+        private final ItemStack item;
+        private final String itemKey;
+        private final String currency;
+        private final int price;
+        private final long createdTime;
+        
+        Listing(long id, UUID sellerId, String sellerName, ItemStack item, String currency, int price, long createdTime) {
+            this.id = id;
+            this.sellerId = sellerId;
+            this.sellerName = sellerName;
+            this.item = item;
+            this.itemKey = itemKey(item.getItem());
+            this.currency = currency;
+            this.price = price;
+            this.createdTime = createdTime;
+        }
+        
+        public long getId() {
+            return id;
+        }
+        
+        public UUID getSellerId() {
+            return sellerId;
+        }
+        
+        public String getSellerName() {
+            return sellerName;
+        }
+        
+        public ItemStack getItem() {
+            return item;
+        }
+        
+        public String getItemKey() {
+            return itemKey;
+        }
+        
+        public String getCurrency() {
+            return currency;
+        }
+        
+        // 整组物品的总价
+        public int getPrice() {
+            return price;
+        }
+        
+        public double getUnitPrice() {
+            return (double) price / item.getCount();
+        }
+        
+        public long getCreatedTime() {
+            return createdTime;
+        }
+        
+        CompoundTag save() {
+            CompoundTag tag = new CompoundTag();
+            tag.putLong("Id", id);
+            tag.putUUID("Seller", sellerId);
+            tag.putString("SellerName", sellerName);
+            tag.put("Item", item.save(new CompoundTag()));
+            tag.putString("Currency", currency);
+            tag.putInt("Price", price);
+            tag.putLong("Created", createdTime);
+            return tag;
+        }
+        
+        static Listing load(CompoundTag tag) {
+            return new Listing(tag.getLong("Id"), tag.getUUID("Seller"), tag.getString("SellerName"),
+                    ItemStack.of(tag.getCompound("Item")), tag.getString("Currency"), tag.getInt("Price"),
+                    tag.getLong("Created"));
+        }
+    }
+    
+    // 求购 count 个物品，总价不超过 price；funds 是尚未付出的托管货币
+    public static class Bid {
+        private final long id;
+        private final UUID bidderId;
+        private final String bidderName;
+        private final Item item;
+        private final String itemKey;
+        private final int count;
+        private int remaining;
+        private final String currency;
+        private final Item currencyItem;
+        private final int price;
+        private int funds;
+        private final long createdTime;
+        
+        Bid(long id, UUID bidderId, String bidderName, Item item, int count, int remaining, String currency,
+            Item currencyItem, int price, int funds, long createdTime) {
+            this.id = id;
+            this.bidderId = bidderId;
+            this.bidderName = bidderName;
+            this.item = item;
+            this.itemKey = itemKey(item);
+            this.count = count;
+            this.remaining = remaining;
+            this.currency = currency;
+            this.currencyItem = currencyItem;
+            this.price = price;
+            this.funds = funds;
+            this.createdTime = createdTime;
+        }
+        
+        public long getId() {
+            return id;
+        }
+        
+        public UUID getBidderId() {
+            return bidderId;
+        }
+        
+        public String getBidderName() {
+            return bidderName;
+        }
+        
+        public Item getItem() {
+            return item;
+        }
+        
+        public String getItemKey() {
+            return itemKey;
+        }
+        
+        public int getCount() {
+            return count;
+        }
+        
+        public int getRemaining() {
+            return remaining;
+        }
+        
+        public String getCurrency() {
+            return currency;
+        }
+        
+        public Item getCurrencyItem() {
+            return currencyItem;
+        }
+        
+        // 全部数量的总限价
+        public int getPrice() {
+            return price;
+        }
+        
+        public double getUnitPrice() {
+            return (double) price / count;
+        }
+        
+        public int getFunds() {
+            return funds;
+        }
+        
+        public ItemStack getRemainingFunds() {
+            return funds > 0 ? new ItemStack(currencyItem, funds) : ItemStack.EMPTY;
+        }
+        
+        public long getCreatedTime() {
+            return createdTime;
+        }
+        
+        // 只修改不参与排序的字段，不需要从订单簿中移出
+        void fill(int filledCount, int paid) {
+            remaining -= filledCount;
+            funds -= paid;
+        }
+        
+        CompoundTag save() {
+            CompoundTag tag = new CompoundTag();
+            tag.putLong("Id", id);
+            tag.putUUID("Bidder", bidderId);
+            tag.putString("BidderName", bidderName);
+            tag.putString("Item", itemKey);
+            tag.putInt("Count", count);
+            tag.putInt("Remaining", remaining);
+            tag.putString("Currency", currency);
+            tag.putString("CurrencyItem", MarketManager.itemKey(currencyItem));
+            tag.putInt("Price", price);
+            tag.putInt("Funds", funds);
+            tag.putLong("Created", createdTime);
+            return tag;
+        }
+        
+        static Bid load(CompoundTag tag, Item item, Item currencyItem) {
+            return new Bid(tag.getLong("Id"), tag.getUUID("Bidder"), tag.getString("BidderName"), item,
+                    tag.getInt("Count"), tag.getInt("Remaining"), tag.getString("Currency"), currencyItem,
+                    tag.getInt("Price"), tag.getInt("Funds"), tag.getLong("Created"));
+        }
+    }
+}
\ No newline at end of file
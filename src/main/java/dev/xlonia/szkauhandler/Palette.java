@@ -0,0 +1,38 @@
+package dev.xlonia.szkauhandler;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+// 只增不减的对象字典：把反复出现的玩家ID、物品ID映射为int下标，记录中只保存下标
+// intern 加锁；get 无锁，通过 volatile 数组发布新加入的值
+public class Palette<T> {
+    private final Map<T, Integer> indices = new HashMap<>();
+    private volatile Object[] values = new Object[16];
+    private int size;
+    
+    public synchronized int intern(T value) {
+        Integer index = indices.get(value);
+        if (index != null) {
+            return index;
+        }
+        Object[] table = values;
+        if (size == table.length) {
+            table = Arrays.copyOf(table, size * 2);
+        }
+        table[size] = value;
+        // 写入后重新发布数组，读者拿到下标时一定能看到对应的值
+        values = table;
+        indices.put(value, size);
+        return size++;
+    }
+    
+    @SuppressWarnings("unchecked")
+    public T get(int index) {
+        return (T) values[index];
+    }
+    
+    public synchronized int size() {
+        return size;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,326 @@
+package dev.xlonia.szkauhandler;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+// 成交价格索引：按（提供的物品, 货币简码）记录已完成交易的单价，维护近1小时/24小时/7天的滑动窗口
+// 每个窗口增量维护成交量、成交额和单调队列中的最低价，记录一笔成交的均摊开销为 O(1)；
+// 中位数由按价格计数的两个有序表（较低一半/较高一半）增量维护，增删为 O(log 不同价格数)，查询为 O(1)
+// 另外每个组合保存一份覆盖全部历史的分位数草图，连同已计入的最后一条日志位置一起写入 price_sketches.bin，
+// 启动回放时只把该位置之后的记录计入草图
+public class PriceIndex {
+    private static final Logger LOGGER = LogManager.getLogger();
+    private static final int SKETCH_MAGIC = 0x534B4850; // "SKHP"
+    private static final int SKETCH_VERSION = 1;
+    public static final double[] PERCENTILES = {0.1, 0.25, 0.5, 0.75, 0.9};
+    
+    public static final long[] WINDOWS = {
+            60L * 60 * 1000,
+            24L * 60 * 60 * 1000,
+            7L * 24 * 60 * 60 * 1000
+    };
+    public static final String[] WINDOW_NAMES = {"1小时", "24小时", "7天"};
+    
+    private final Map<String, Map<String, Series>> series = new HashMap<>();
+    // 已计入草图的最后一条日志记录的位置
+    private long sketchWatermark = -1;
+    private boolean sketchesDirty;
+    
+    // 只记录已完成且以货币简码计价的交易；同时请求两种货币时分别记录
+    // position 为记录在交易日志中的位置，写入失败时为-1
+    public void record(TradeManager.TradeHistory history, long position) {
+        if (history.getStatus() != TradeManager.Trade.Status.COMPLETED || history.getOfferedAmount() <= 0) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        String item = TradeFilter.itemKey(history.getOfferedItem());
+        ConfigManager config = Szkauhandler.getInstance().getConfigManager();
+        synchronized (this) {
+            boolean inWindow = history.getTimestamp() >= now - WINDOWS[WINDOWS.length - 1];
+            // 启动回放时跳过已经保存在草图文件中的记录
+            boolean inSketch = position < 0 || position > sketchWatermark;
+            if (!inWindow && !inSketch) {
+                return;
+            }
+            if (config.isCurrencyCode(history.getRequestedItem1()) && history.getRequestedAmount1() > 0) {
+                add(item, history.getRequestedItem1(), history, history.getRequestedAmount1(), now, inWindow, inSketch);
+            }
+            if (config.isCurrencyCode(history.getRequestedItem2()) && history.getRequestedAmount2() > 0) {
+                add(item, history.getRequestedItem2(), history, history.getRequestedAmount2(), now, inWindow, inSketch);
+            }
+            if (inSketch) {
+                sketchWatermark = Math.max(sketchWatermark, position);
+                sketchesDirty = true;
+            }
+        }
+    }
+    
+    private void add(String item, String currency, TradeManager.TradeHistory history, int price, long now,
+                     boolean inWindow, boolean inSketch) {
+        Sample sample = new Sample(history.getTimestamp(), (double) price / history.getOfferedAmount(), history.getOfferedAmount());
+        Series s = series.computeIfAbsent(item, k -> new HashMap<>())
+                .computeIfAbsent(currency, k -> new Series());
+        if (inWindow) {
+            s.add(sample, now);
+        }
+        if (inSketch) {
+            s.sketch.update(sample.price());
+        }
+    }
+    
+    // 全部历史上的单价分位数，按 PERCENTILES 的顺序；没有记录时返回null
+    public synchronized double[] getPercentiles(String item, String currency) {
+        Map<String, Series> byCurrency = series.get(item);
+        Series s = byCurrency != null ? byCurrency.get(currency) : null;
+        if (s == null || s.sketch.getCount() == 0) {
+            return null;
+        }
+        double[] result = new double[PERCENTILES.length];
+        for (int i = 0; i < PERCENTILES.length; i++) {
+            result[i] = s.sketch.quantile(PERCENTILES[i]);
+        }
+        return result;
+    }
+    
+    public synchronized long getSketchCount(String item, String currency) {
+        Map<String, Series> byCurrency = series.get(item);
+        Series s = byCurrency != null ? byCurrency.get(currency) : null;
+        return s != null ? s.sketch.getCount() : 0;
+    }
+    
+    // 返回该物品有成交记录的货币简码
+    public synchronized Set<String> getCurrencies(String item) {
+        Map<String, Series> byCurrency = series.get(item);
+        return byCurrency != null ? new TreeSet<>(byCurrency.keySet()) : Collections.emptySet();
+    }
+    
+    // 按 WINDOWS 的顺序返回各窗口的统计，没有成交的窗口为null
+    public synchronized Stats[] getStats(String item, String currency) {
+        Stats[] result = new Stats[WINDOWS.length];
+        Map<String, Series> byCurrency = series.get(item);
+        Series s = byCurrency != null ? byCurrency.get(currency) : null;
+        if (s != null) {
+            s.evict(System.currentTimeMillis());
+            for (int i = 0; i < WINDOWS.length; i++) {
+                result[i] = s.windows[i].stats();
+            }
+        }
+        return result;
+    }
+    
+    public synchronized void clear() {
+        series.clear();
+        sketchWatermark = -1;
+        sketchesDirty = false;
+    }
+    
+    // 在调用线程上序列化草图，没有变化时返回null；写盘交给后台IO线程
+    public synchronized byte[] snapshotSketches() {
+        if (!sketchesDirty) {
+            return null;
+        }
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(SKETCH_MAGIC);
+            out.writeInt(SKETCH_VERSION);
+            out.writeLong(sketchWatermark);
+            int pairs = 0;
+            for (Map<String, Series> byCurrency : series.values()) {
+                for (Series s : byCurrency.values()) {
+                    if (s.sketch.getCount() > 0) {
+                        pairs++;
+                    }
+                }
+            }
+            out.writeInt(pairs);
+            for (Map.Entry<String, Map<String, Series>> byItem : series.entrySet()) {
+                for (Map.Entry<String, Series> entry : byItem.getValue().entrySet()) {
+                    if (entry.getValue().sketch.getCount() == 0) {
+                        continue;
+                    }
+                    out.writeUTF(byItem.getKey());
+                    out.writeUTF(entry.getKey());
+                    entry.getValue().sketch.write(out);
+                }
+            }
+            sketchesDirty = false;
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            LOGGER.error("序列化价格草图失败: {}", e.getMessage());
+            return null;
+        }
+    }
+    
+    // 在回放交易日志之前调用；文件缺失或损坏时草图从日志中重建
+    public synchronized void loadSketches(Path file) {
+        clear();
+        if (!Files.exists(file)) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != SKETCH_MAGIC || in.readInt() != SKETCH_VERSION) {
+                LOGGER.error("价格草图文件格式不正确: {}", file);
+                return;
+            }
+            long watermark = in.readLong();
+            int pairs = in.readInt();
+            for (int i = 0; i < pairs; i++) {
+                String item = in.readUTF();
+                String currency = in.readUTF();
+                series.computeIfAbsent(item, k -> new HashMap<>())
+                        .computeIfAbsent(currency, k -> new Series())
+                        .sketch.merge(QuantileSketch.read(in));
+            }
+            sketchWatermark = watermark;
+        } catch (IOException e) {
+            LOGGER.error("读取价格草图失败，将从交易日志重建: {}", e.getMessage());
+            clear();
+        }
+    }
+    
+    public record Stats(int trades, long volume, double min, double median, double vwap) {
+    }
+    
+    private record Sample(long time, double price, int volume) {
+    }
+    
+    private static final class Series {
+        private final Window[] windows = new Window[WINDOWS.length];
+        private final QuantileSketch sketch = new QuantileSketch();
+        
+        Series() {
+            for (int i = 0; i < WINDOWS.length; i++) {
+                windows[i] = new Window(WINDOWS[i]);
+            }
+        }
+        
+        void add(Sample sample, long now) {
+            for (Window window : windows) {
+                window.add(sample);
+            }
+            evict(now);
+        }
+        
+        void evict(long now) {
+            for (Window window : windows) {
+                window.evict(now);
+            }
+        }
+    }
+    
+    private static final class Window {
+        private final long length;
+        private final ArrayDeque<Sample> samples = new ArrayDeque<>();
+        // 单调递增队列，队首为窗口内最低价
+        private final ArrayDeque<Sample> minQueue = new ArrayDeque<>();
+        private final SlidingMedian median = new SlidingMedian();
+        private double turnover;
+        private long volume;
+        
+        Window(long length) {
+            this.length = length;
+        }
+        
+        void add(Sample sample) {
+            samples.addLast(sample);
+            turnover += sample.price() * sample.volume();
+            volume += sample.volume();
+            while (!minQueue.isEmpty() && minQueue.peekLast().price() > sample.price()) {
+                minQueue.pollLast();
+            }
+            minQueue.addLast(sample);
+            median.add(sample.price());
+        }
+        
+        void evict(long now) {
+            long cutoff = now - length;
+            while (!samples.isEmpty() && samples.peekFirst().time() < cutoff) {
+                Sample old = samples.pollFirst();
+                turnover -= old.price() * old.volume();
+                volume -= old.volume();
+                if (minQueue.peekFirst() == old) {
+                    minQueue.pollFirst();
+                }
+                median.remove(old.price());
+            }
+            if (samples.isEmpty()) {
+                // 清除累计的浮点误差
+                turnover = 0;
+                volume = 0;
+            }
+        }
+        
+        Stats stats() {
+            if (samples.isEmpty()) {
+                return null;
+            }
+            return new Stats(samples.size(), volume, minQueue.peekFirst().price(), median.get(), turnover / volume);
+        }
+    }
+    
+    // 窗口内价格的中位数：low 保存较低的一半，high 保存较高的一半，low 的个数等于 high 或多一个
+    // 相同的价格只计数，移出窗口时按价格精确删除，不留下待清理的元素
+    private static final class SlidingMedian {
+        private final TreeMap<Double, Integer> low = new TreeMap<>();
+        private final TreeMap<Double, Integer> high = new TreeMap<>();
+        private int lowSize;
+        private int highSize;
+        
+        void add(double price) {
+            if (lowSize == 0 || price <= low.lastKey()) {
+                increment(low, price);
+                lowSize++;
+            } else {
+                increment(high, price);
+                highSize++;
+            }
+            rebalance();
+        }
+        
+        // price 必须是之前加入且尚未删除的价格；low 中的价格都不大于 high 中的价格
+        void remove(double price) {
+            if (price <= low.lastKey()) {
+                decrement(low, price);
+                lowSize--;
+            } else {
+                decrement(high, price);
+                highSize--;
+            }
+            rebalance();
+        }
+        
+        double get() {
+            return lowSize > highSize ? low.lastKey() : (low.lastKey() + high.firstKey()) / 2;
+        }
+        
+        private void rebalance() {
+            if (lowSize > highSize + 1) {
+                double price = low.lastKey();
+                decrement(low, price);
+                increment(high, price);
+                lowSize--;
+                highSize++;
+            } else if (lowSize < highSize) {
+                double price = high.firstKey();
+                decrement(high, price);
+                increment(low, price);
+                highSize--;
+                lowSize++;
+            }
+        }
+        
+        private static void increment(TreeMap<Double, Integer> counts, double price) {
+            counts.merge(price, 1, Integer::sum);
+        }
+        
+        private static void decrement(TreeMap<Double, Integer> counts, double price) {
+            counts.computeIfPresent(price, (k, n) -> n > 1 ? n - 1 : null);
+        }
+    }
+}
\ No newline at end of file
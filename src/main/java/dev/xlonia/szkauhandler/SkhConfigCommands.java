@@ -8,11 +8,20 @@ import net.minecraft.commands.CommandSourceStack;
 import net.minecraft.commands.Commands;
 import net.minecraft.commands.arguments.EntityArgument;
 import net.minecraft.network.chat.Component;
+import net.minecraft.server.MinecraftServer;
 import net.minecraft.server.level.ServerPlayer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 
-import java.util.UUID;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
 
 public class SkhConfigCommands {
+    private static final Logger LOGGER = LogManager.getLogger();
+    private static final int PAGE_SIZE = 10;
+    private static final int STATS_TOP = 5;
+    
     public static void registerCommands(CommandDispatcher<CommandSourceStack> dispatcher) {
         dispatcher.register(Commands.literal("skhconfig")
                 .requires(source -> source.hasPermission(2)) // 使用OP权限
@@ -59,6 +68,15 @@ public class SkhConfigCommands {
                 )
                 .then(Commands.literal("list")
                         .then(Commands.argument("page", StringArgumentType.word())
+                                .then(Commands.literal("where")
+                                        .then(Commands.argument("filters", StringArgumentType.greedyString())
+                                                .executes(context -> {
+                                                    String page = StringArgumentType.getString(context, "page");
+                                                    String filters = StringArgumentType.getString(context, "filters");
+                                                    return showPendingTrades(context.getSource().getPlayerOrException(), page, filters);
+                                                })
+                                        )
+                                )
                                 .then(Commands.argument("player", EntityArgument.player())
                                         .executes(context -> {
                                             String page = StringArgumentType.getString(context, "page");
@@ -68,12 +86,21 @@ public class SkhConfigCommands {
                                 )
                                 .executes(context -> {
                                     String page = StringArgumentType.getString(context, "page");
-                                    return showPendingTrades(context.getSource().getPlayerOrException(), page, null);
+                                    return showPendingTrades(context.getSource().getPlayerOrException(), page, "");
                                 })
                         )
                 )
                 .then(Commands.literal("istory")
                         .then(Commands.argument("page", StringArgumentType.word())
+                                .then(Commands.literal("where")
+                                        .then(Commands.argument("filters", StringArgumentType.greedyString())
+                                                .executes(context -> {
+                                                    String page = StringArgumentType.getString(context, "page");
+                                                    String filters = StringArgumentType.getString(context, "filters");
+                                                    return showTradeHistory(context.getSource().getPlayerOrException(), page, filters);
+                                                })
+                                        )
+                                )
                                 .then(Commands.argument("player", EntityArgument.player())
                                         .executes(context -> {
                                             String page = StringArgumentType.getString(context, "page");
@@ -83,9 +110,18 @@ public class SkhConfigCommands {
                                 )
                                 .executes(context -> {
                                     String page = StringArgumentType.getString(context, "page");
-                                    return showTradeHistory(context.getSource().getPlayerOrException(), page, null);
+                                    return showTradeHistory(context.getSource().getPlayerOrException(), page, "");
+                                })
+                        )
+                )
+                .then(Commands.literal("stats")
+                        .then(Commands.argument("window", StringArgumentType.word())
+                                .executes(context -> {
+                                    String window = StringArgumentType.getString(context, "window");
+                                    return showStats(context.getSource().getPlayerOrException(), window);
                                 })
                         )
+                        .executes(context -> showStats(context.getSource().getPlayerOrException(), null))
                 )
                 .then(Commands.literal("inf")
                         .then(Commands.argument("enabled", BoolArgumentType.bool())
@@ -130,57 +166,184 @@ public class SkhConfigCommands {
     }
     
     private static int showPendingTrades(ServerPlayer op, String page, ServerPlayer target) {
-        if (target != null) {
-            // 显示特定玩家的待处理交易
-            for (TradeManager.Trade trade : Szkauhandler.getInstance().getTradeManager().getPendingTrades(target.getUUID())) {
-                net.minecraft.server.level.ServerPlayer initiator = op.serverLevel().getServer().getPlayerList().getPlayer(trade.getInitiatorId());
-                net.minecraft.server.level.ServerPlayer tradeTarget = op.serverLevel().getServer().getPlayerList().getPlayer(trade.getTargetId());
-                op.sendSystemMessage(Component.literal(String.format("交易ID: %s, 发起者: %s, 目标: %s, 状态: %s",
-                        trade.getId(),
-                        initiator != null ? initiator.getName().getString() : trade.getInitiatorId().toString(),
-                        tradeTarget != null ? tradeTarget.getName().getString() : trade.getTargetId().toString(),
-                        trade.getStatus().name())));
-            }
-        } else {
-            // 显示所有待处理交易（简化实现）
-            op.sendSystemMessage(Component.literal("待处理交易列表："));
-            // 这里应该遍历所有待处理交易，但为了简化，只显示OP自己的
-            for (TradeManager.Trade trade : Szkauhandler.getInstance().getTradeManager().getPendingTrades(op.getUUID())) {
-                net.minecraft.server.level.ServerPlayer initiator = op.serverLevel().getServer().getPlayerList().getPlayer(trade.getInitiatorId());
-                net.minecraft.server.level.ServerPlayer tradeTarget = op.serverLevel().getServer().getPlayerList().getPlayer(trade.getTargetId());
-                op.sendSystemMessage(Component.literal(String.format("交易ID: %s, 发起者: %s, 目标: %s, 状态: %s",
+        return showPendingTrades(op, page, TradeFilter.participant(target.getUUID()), " " + target.getName().getString());
+    }
+    
+    // 未指定玩家时显示全服的待处理交易，可按 where 后的条件过滤
+    private static int showPendingTrades(ServerPlayer op, String page, String filters) {
+        TradeFilter filter = parseFilter(op, filters);
+        if (filter == null) {
+            return 0;
+        }
+        return showPendingTrades(op, page, filter, filters.isBlank() ? "" : " where " + filters);
+    }
+    
+    private static int showPendingTrades(ServerPlayer op, String page, TradeFilter filter, String hintArgs) {
+        int pageNumber = parsePage(op, page);
+        if (pageNumber < 1) {
+            return 0;
+        }
+        // 在服务器线程上取得在线玩家名称，其余工作交给查询线程
+        Map<UUID, String> names = onlineNames(op.getServer());
+        runQuery(op, () -> {
+            List<TradeManager.Trade> trades = Szkauhandler.getInstance().getTradeManager().findPendingTrades(filter);
+            int totalPages = Math.max(1, (trades.size() + PAGE_SIZE - 1) / PAGE_SIZE);
+            List<String> lines = new ArrayList<>();
+            lines.add(String.format("待处理交易列表（第 %d/%d 页，共 %d 条）：", pageNumber, totalPages, trades.size()));
+            int start = (pageNumber - 1) * PAGE_SIZE;
+            for (int i = start; i < Math.min(trades.size(), start + PAGE_SIZE); i++) {
+                TradeManager.Trade trade = trades.get(i);
+                lines.add(String.format("交易ID: %s, 发起者: %s, 目标: %s, 状态: %s",
                         trade.getId(),
-                        initiator != null ? initiator.getName().getString() : trade.getInitiatorId().toString(),
-                        tradeTarget != null ? tradeTarget.getName().getString() : trade.getTargetId().toString(),
-                        trade.getStatus().name())));
+                        names.getOrDefault(trade.getInitiatorId(), trade.getInitiatorId().toString()),
+                        names.getOrDefault(trade.getTargetId(), trade.getTargetId().toString()),
+                        trade.getStatus().name()));
             }
-        }
+            addNextPageHint(lines, "list", pageNumber, totalPages, hintArgs);
+            return lines;
+        });
         return 1;
     }
     
     private static int showTradeHistory(ServerPlayer op, String page, ServerPlayer target) {
-        if (target != null) {
-            // 显示特定玩家的交易历史
-            for (TradeManager.TradeHistory history : Szkauhandler.getInstance().getTradeManager().getTradeHistories(target.getUUID())) {
-                op.sendSystemMessage(Component.literal(String.format("交易ID: %s, 时间: %d, 状态: %s",
+        return showTradeHistory(op, page, TradeFilter.participant(target.getUUID()), " " + target.getName().getString());
+    }
+    
+    // 未指定玩家时显示全服的交易历史，可按 where 后的条件过滤
+    private static int showTradeHistory(ServerPlayer op, String page, String filters) {
+        TradeFilter filter = parseFilter(op, filters);
+        if (filter == null) {
+            return 0;
+        }
+        return showTradeHistory(op, page, filter, filters.isBlank() ? "" : " where " + filters);
+    }
+    
+    private static int showTradeHistory(ServerPlayer op, String page, TradeFilter filter, String hintArgs) {
+        int pageNumber = parsePage(op, page);
+        if (pageNumber < 1) {
+            return 0;
+        }
+        Map<UUID, String> names = onlineNames(op.getServer());
+        runQuery(op, () -> {
+            HistoryStore.HistoryPage result = Szkauhandler.getInstance().getTradeManager()
+                    .queryTradeHistory(filter, pageNumber, PAGE_SIZE);
+            List<String> lines = new ArrayList<>();
+            lines.add(String.format("交易历史列表（第 %d/%d 页，共 %d 条）：", pageNumber, result.totalPages(), result.total()));
+            for (TradeManager.TradeHistory history : result.records()) {
+                lines.add(String.format("交易ID: %s, 时间: %d, 状态: %s, 发起者: %s, 目标: %s, 提供: %s x%d",
                         history.getTradeId(),
                         history.getTimestamp(),
-                        history.getStatus().name())));
+                        history.getStatus().name(),
+                        names.getOrDefault(history.getInitiatorId(), history.getInitiatorId().toString()),
+                        names.getOrDefault(history.getTargetId(), history.getTargetId().toString()),
+                        history.getOfferedItem(),
+                        history.getOfferedAmount()));
             }
-        } else {
-            // 显示所有交易历史（简化实现）
-            op.sendSystemMessage(Component.literal("交易历史列表："));
-            // 这里应该遍历所有交易历史，但为了简化，只显示OP自己的
-            for (TradeManager.TradeHistory history : Szkauhandler.getInstance().getTradeManager().getTradeHistories(op.getUUID())) {
-                op.sendSystemMessage(Component.literal(String.format("交易ID: %s, 时间: %d, 状态: %s",
-                        history.getTradeId(),
-                        history.getTimestamp(),
-                        history.getStatus().name())));
+            addNextPageHint(lines, "istory", pageNumber, result.totalPages(), hintArgs);
+            return lines;
+        });
+        return 1;
+    }
+    
+    // 统计最近 window（如 24h、7d）内的历史，未指定时统计全部保留的历史
+    private static int showStats(ServerPlayer op, String window) {
+        long since = Long.MIN_VALUE;
+        if (window != null) {
+            try {
+                since = System.currentTimeMillis() - TradeFilter.parseDuration(window);
+            } catch (IllegalArgumentException e) {
+                op.sendSystemMessage(Component.literal(e.getMessage()));
+                return 0;
             }
         }
+        long from = since;
+        Map<UUID, String> names = onlineNames(op.getServer());
+        op.sendSystemMessage(Component.literal("正在统计交易历史..."));
+        runQuery(op, () -> {
+            HistoryColumns.View view = Szkauhandler.getInstance().getTradeManager().snapshotHistoryColumns();
+            HistoryStats stats = HistoryStats.compute(view, from);
+            List<String> lines = new ArrayList<>();
+            lines.add(String.format("交易统计（%s）：", window != null ? "最近" + window : "全部历史"));
+            
+            long completed = stats.getStatusCount(TradeManager.Trade.Status.COMPLETED);
+            long denied = stats.getStatusCount(TradeManager.Trade.Status.DENIED);
+            long expired = stats.getStatusCount(TradeManager.Trade.Status.EXPIRED);
+            long finished = completed + denied + expired;
+            lines.add(String.format("已结束交易 %d 笔：成交 %d，拒绝 %d（%.1f%%），过期 %d（%.1f%%）",
+                    finished, completed, denied, percent(denied, finished), expired, percent(expired, finished)));
+            
+            lines.add("成交量最高的物品：");
+            for (HistoryStats.Entry<String> entry : stats.topItems(STATS_TOP)) {
+                lines.add(String.format("|%s x%d（%d 笔）", entry.key(), entry.amount(), entry.trades()));
+            }
+            lines.add("支付最多的货币：");
+            for (HistoryStats.Entry<String> entry : stats.topCurrencies(STATS_TOP)) {
+                lines.add(String.format("|%s x%d", entry.key(), entry.amount()));
+            }
+            lines.add("成交最多的玩家：");
+            for (HistoryStats.Entry<UUID> entry : stats.topTraders(STATS_TOP)) {
+                lines.add(String.format("|%s %d 笔", names.getOrDefault(entry.key(), entry.key().toString()), entry.trades()));
+            }
+            return lines;
+        });
         return 1;
     }
     
+    private static double percent(long part, long total) {
+        return total > 0 ? part * 100.0 / total : 0;
+    }
+    
+    // 解析失败时提示并返回null
+    private static TradeFilter parseFilter(ServerPlayer op, String filters) {
+        try {
+            return TradeFilter.parse(filters, op.getServer());
+        } catch (IllegalArgumentException e) {
+            op.sendSystemMessage(Component.literal(e.getMessage()));
+            return null;
+        }
+    }
+    
+    // 页码从1开始，无效时提示并返回0
+    private static int parsePage(ServerPlayer op, String page) {
+        try {
+            int pageNumber = Integer.parseInt(page);
+            if (pageNumber >= 1) {
+                return pageNumber;
+            }
+        } catch (NumberFormatException ignored) {
+        }
+        op.sendSystemMessage(Component.literal("页码必须是大于0的整数"));
+        return 0;
+    }
+    
+    private static void addNextPageHint(List<String> lines, String command, int page, int totalPages, String hintArgs) {
+        if (page < totalPages) {
+            lines.add(String.format("使用 /skhconfig %s %d%s 查看下一页", command, page + 1, hintArgs));
+        }
+    }
+    
+    private static Map<UUID, String> onlineNames(MinecraftServer server) {
+        Map<UUID, String> names = new HashMap<>();
+        for (ServerPlayer player : server.getPlayerList().getPlayers()) {
+            names.put(player.getUUID(), player.getName().getString());
+        }
+        return names;
+    }
+    
+    // 在查询线程上生成结果，再回到服务器线程合并为一条消息发送
+    private static void runQuery(ServerPlayer op, Supplier<List<String>> query) {
+        MinecraftServer server = op.getServer();
+        CompletableFuture.supplyAsync(query, SkhExecutors.queries())
+                .whenComplete((lines, error) -> server.execute(() -> {
+                    if (error != null) {
+                        LOGGER.error("查询失败: {}", error.getMessage());
+                        op.sendSystemMessage(Component.literal("查询失败，请查看服务器日志"));
+                    } else if (!lines.isEmpty()) {
+                        op.sendSystemMessage(Component.literal(String.join("\n", lines)));
+                    }
+                }));
+    }
+    
     private static int setInfiniteMode(ServerPlayer op, boolean enabled) {
         // 只有OP可以开启无限模式
         if (enabled && !op.hasPermissions(2)) {
@@ -0,0 +1,106 @@
+package dev.xlonia.szkauhandler;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// 模组使用的后台线程
+// io 为单线程执行器，按提交顺序执行写盘任务，服务器关闭时等待其执行完毕
+// queries 为查询线程池，在服务器线程之外生成历史/管理查询的结果
+// scans 为 fork/join 线程池，供全量历史统计把扫描拆分到多个核心上
+public final class SkhExecutors {
+    private static final Logger LOGGER = LogManager.getLogger();
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 10;
+    private static final int QUERY_THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+    // 留一个核心给服务器线程
+    private static final int SCAN_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+    private static ExecutorService io;
+    private static ExecutorService queries;
+    private static ForkJoinPool scans;
+    
+    private SkhExecutors() {
+    }
+    
+    public static ThreadFactory daemonFactory(String name) {
+        return runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+    
+    // 同名前缀加序号，用于线程池
+    public static ThreadFactory daemonFactory(String prefix, AtomicInteger counter) {
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+    
+    public static synchronized ExecutorService io() {
+        if (io == null || io.isShutdown()) {
+            io = Executors.newSingleThreadExecutor(daemonFactory("szkauhandler-io"));
+        }
+        return io;
+    }
+    
+    // 停止接收新任务并等待已提交的写盘任务完成
+    public static synchronized void shutdownIo() {
+        if (io == null) {
+            return;
+        }
+        io.shutdown();
+        try {
+            if (!io.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                LOGGER.warn("后台写盘任务未能在 {} 秒内完成", SHUTDOWN_TIMEOUT_SECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        io = null;
+    }
+    
+    public static synchronized ExecutorService queries() {
+        if (queries == null || queries.isShutdown()) {
+            queries = Executors.newFixedThreadPool(QUERY_THREADS, daemonFactory("szkauhandler-query", new AtomicInteger()));
+        }
+        return queries;
+    }
+    
+    // 查询结果只用于显示，关闭时直接丢弃未完成的查询
+    public static synchronized void shutdownQueries() {
+        if (queries == null) {
+            return;
+        }
+        queries.shutdownNow();
+        queries = null;
+    }
+    
+    public static synchronized ForkJoinPool scans() {
+        if (scans == null || scans.isShutdown()) {
+            scans = new ForkJoinPool(SCAN_THREADS, pool -> {
+                ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                thread.setName("szkauhandler-scan-" + thread.getPoolIndex());
+                thread.setDaemon(true);
+                return thread;
+            }, null, false);
+        }
+        return scans;
+    }
+    
+    public static synchronized void shutdownScans() {
+        if (scans == null) {
+            return;
+        }
+        scans.shutdownNow();
+        scans = null;
+    }
+}
\ No newline at end of file
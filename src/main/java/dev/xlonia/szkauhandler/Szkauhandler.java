@@ -4,8 +4,10 @@ import net.minecraftforge.common.MinecraftForge;
 import net.minecraftforge.event.server.ServerStartingEvent;
 import net.minecraftforge.event.server.ServerStoppingEvent;
 import net.minecraftforge.eventbus.api.IEventBus;
+import net.minecraftforge.eventbus.api.SubscribeEvent;
 import net.minecraftforge.fml.common.Mod;
 import net.minecraftforge.fml.javafmlmod.FMLJavaModLoadingContext;
+import net.minecraftforge.fml.loading.FMLPaths;
 
 @Mod("szkauhandler")
 public class Szkauhandler {
@@ -13,19 +15,24 @@ public class Szkauhandler {
     private static Szkauhandler instance;
     private final TradeManager tradeManager;
     private final ConfigManager configManager;
+    private final MarketManager marketManager;
+    private final EscrowStore escrowStore;
     
     public Szkauhandler() {
         instance = this;
         tradeManager = new TradeManager();
         configManager = new ConfigManager();
+        escrowStore = new EscrowStore(FMLPaths.CONFIGDIR.get().resolve("szkauhandler").resolve("escrow.dat"));
+        marketManager = new MarketManager(FMLPaths.CONFIGDIR.get().resolve("szkauhandler").resolve("market.dat"));
         
-        // 加载数据
+        // 配置很小且其他组件依赖它，在这里直接加载；交易历史在服务器启动时于后台回放
         configManager.loadConfig();
-        tradeManager.loadData();
         
         IEventBus modEventBus = FMLJavaModLoadingContext.get().getModEventBus();
         MinecraftForge.EVENT_BUS.register(this);
         MinecraftForge.EVENT_BUS.register(tradeManager);
+        MinecraftForge.EVENT_BUS.register(marketManager);
+        MinecraftForge.EVENT_BUS.register(escrowStore);
     }
     
     public static Szkauhandler getInstance() {
@@ -40,14 +47,35 @@ public class Szkauhandler {
         return configManager;
     }
     
+    public MarketManager getMarketManager() {
+        return marketManager;
+    }
+    
+    public EscrowStore getEscrowStore() {
+        return escrowStore;
+    }
+    
+    @SubscribeEvent
     public void onServerStarting(ServerStartingEvent event) {
+        // 挂单中的物品可能来自其他模组，需要等物品注册完成后再加载
+        // 市场订单与托管物品保存在同一份快照中，由 EscrowStore 一并加载
+        escrowStore.load();
+        tradeManager.loadData();
         SzkauhandlerCommands.registerCommands(event.getServer().getCommands().getDispatcher());
         SkhConfigCommands.registerCommands(event.getServer().getCommands().getDispatcher());
     }
     
+    @SubscribeEvent
     public void onServerStopping(ServerStoppingEvent event) {
         // 保存数据
         configManager.saveConfig();
+        tradeManager.ensureHistoryLoaded();
         tradeManager.saveData();
+        tradeManager.close();
+        // 同时写入市场订单
+        escrowStore.save();
+        SkhExecutors.shutdownQueries();
+        SkhExecutors.shutdownScans();
+        SkhExecutors.shutdownIo();
     }
 }
\ No newline at end of file
@@ -2,18 +2,32 @@ package dev.xlonia.szkauhandler;
 
 import com.mojang.brigadier.CommandDispatcher;
 import com.mojang.brigadier.arguments.IntegerArgumentType;
+import com.mojang.brigadier.arguments.LongArgumentType;
 import com.mojang.brigadier.arguments.StringArgumentType;
+import com.mojang.brigadier.context.CommandContext;
+import com.mojang.brigadier.suggestion.Suggestions;
+import com.mojang.brigadier.suggestion.SuggestionsBuilder;
 import net.minecraft.commands.CommandSourceStack;
 import net.minecraft.commands.Commands;
+import net.minecraft.commands.SharedSuggestionProvider;
 import net.minecraft.commands.arguments.EntityArgument;
 import net.minecraft.network.chat.Component;
+import net.minecraft.server.MinecraftServer;
 import net.minecraft.server.level.ServerPlayer;
+import net.minecraft.world.InteractionHand;
+import net.minecraft.world.item.Item;
 import net.minecraft.world.item.ItemStack;
 
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 
 public class SzkauhandlerCommands {
+    private static final int MARKET_PAGE_SIZE = 10;
+    
     public static void registerCommands(CommandDispatcher<CommandSourceStack> dispatcher) {
         dispatcher.register(Commands.literal("szkauhandler")
                 .then(Commands.literal("trad")
@@ -49,34 +63,38 @@ public class SzkauhandlerCommands {
                                 )
                         )
                 )
+                // 回应交易时按玩家名查找，发起者的物品已托管，对方下线后仍可接受或拒绝
                 .then(Commands.literal("acce")
-                        .then(Commands.argument("player", EntityArgument.player())
+                        .then(Commands.argument("player", StringArgumentType.word())
+                                .suggests(SzkauhandlerCommands::suggestCounterparts)
                                 .executes(context -> {
                                     ServerPlayer player = context.getSource().getPlayerOrException();
-                                    ServerPlayer target = EntityArgument.getPlayer(context, "player");
-                                    return acceptTrade(player, target);
+                                    String name = StringArgumentType.getString(context, "player");
+                                    return acceptTrade(player, name);
                                 })
                         )
                 )
                 .then(Commands.literal("deny")
-                        .then(Commands.argument("player", EntityArgument.player())
+                        .then(Commands.argument("player", StringArgumentType.word())
+                                .suggests(SzkauhandlerCommands::suggestCounterparts)
                                 .executes(context -> {
                                     ServerPlayer player = context.getSource().getPlayerOrException();
-                                    ServerPlayer target = EntityArgument.getPlayer(context, "player");
-                                    return denyTrade(player, target);
+                                    String name = StringArgumentType.getString(context, "player");
+                                    return denyTrade(player, name);
                                 })
                         )
                 )
                 .then(Commands.literal("barg")
-                        .then(Commands.argument("player", EntityArgument.player())
+                        .then(Commands.argument("player", StringArgumentType.word())
+                                .suggests(SzkauhandlerCommands::suggestCounterparts)
                                 .then(Commands.argument("amount1", IntegerArgumentType.integer(1))
                                         .then(Commands.argument("amount2", IntegerArgumentType.integer(0))
                                                 .executes(context -> {
                                                     ServerPlayer player = context.getSource().getPlayerOrException();
-                                                    ServerPlayer target = EntityArgument.getPlayer(context, "player");
+                                                    String name = StringArgumentType.getString(context, "player");
                                                     int amount1 = IntegerArgumentType.getInteger(context, "amount1");
                                                     int amount2 = IntegerArgumentType.getInteger(context, "amount2");
-                                                    return bargainTrade(player, target, amount1, amount2);
+                                                    return bargainTrade(player, name, amount1, amount2);
                                                 })
                                         )
                                 )
@@ -94,6 +112,119 @@ public class SzkauhandlerCommands {
                             return showMarkList(player);
                         })
                 )
+                .then(Commands.literal("price")
+                        .then(Commands.argument("item", StringArgumentType.string())
+                                .then(Commands.argument("currency", StringArgumentType.string())
+                                        .executes(context -> {
+                                            ServerPlayer player = context.getSource().getPlayerOrException();
+                                            String item = StringArgumentType.getString(context, "item");
+                                            String currency = StringArgumentType.getString(context, "currency");
+                                            return showPrice(player, item, currency);
+                                        })
+                                )
+                                .executes(context -> {
+                                    ServerPlayer player = context.getSource().getPlayerOrException();
+                                    String item = StringArgumentType.getString(context, "item");
+                                    return showPrice(player, item, null);
+                                })
+                        )
+                )
+                .then(Commands.literal("sell")
+                        .then(Commands.argument("currency", StringArgumentType.string())
+                                .then(Commands.argument("price", IntegerArgumentType.integer(1, MarketManager.MAX_PRICE))
+                                        .executes(context -> {
+                                            ServerPlayer player = context.getSource().getPlayerOrException();
+                                            String currency = StringArgumentType.getString(context, "currency");
+                                            int price = IntegerArgumentType.getInteger(context, "price");
+                                            return createListing(player, currency, price);
+                                        })
+                                )
+                        )
+                )
+                .then(Commands.literal("bid")
+                        .then(Commands.argument("item", StringArgumentType.string())
+                                .then(Commands.argument("count", IntegerArgumentType.integer(1, MarketManager.MAX_BID_COUNT))
+                                        .then(Commands.argument("currency", StringArgumentType.string())
+                                                .then(Commands.argument("price", IntegerArgumentType.integer(1, MarketManager.MAX_PRICE))
+                                                        .executes(context -> {
+                                                            ServerPlayer player = context.getSource().getPlayerOrException();
+                                                            String item = StringArgumentType.getString(context, "item");
+                                                            int count = IntegerArgumentType.getInteger(context, "count");
+                                                            String currency = StringArgumentType.getString(context, "currency");
+                                                            int price = IntegerArgumentType.getInteger(context, "price");
+                                                            return createBid(player, item, count, currency, price);
+                                                        })
+                                                )
+                                        )
+                                )
+                        )
+                )
+                .then(Commands.literal("market")
+                        .then(Commands.argument("item", StringArgumentType.string())
+                                .then(Commands.argument("currency", StringArgumentType.string())
+                                        .then(Commands.argument("page", IntegerArgumentType.integer(1))
+                                                .executes(context -> {
+                                                    ServerPlayer player = context.getSource().getPlayerOrException();
+                                                    String item = StringArgumentType.getString(context, "item");
+                                                    String currency = StringArgumentType.getString(context, "currency");
+                                                    int page = IntegerArgumentType.getInteger(context, "page");
+                                                    return showMarket(player, item, currency, page);
+                                                })
+                                        )
+                                        .executes(context -> {
+                                            ServerPlayer player = context.getSource().getPlayerOrException();
+                                            String item = StringArgumentType.getString(context, "item");
+                                            String currency = StringArgumentType.getString(context, "currency");
+                                            return showMarket(player, item, currency, 1);
+                                        })
+                                )
+                                .executes(context -> {
+                                    ServerPlayer player = context.getSource().getPlayerOrException();
+                                    String item = StringArgumentType.getString(context, "item");
+                                    return showMarket(player, item, null, 1);
+                                })
+                        )
+                        .executes(context -> {
+                            ServerPlayer player = context.getSource().getPlayerOrException();
+                            return showMyListings(player);
+                        })
+                )
+                .then(Commands.literal("buy")
+                        .then(Commands.literal("cheapest")
+                                .then(Commands.argument("item", StringArgumentType.string())
+                                        .then(Commands.argument("currency", StringArgumentType.string())
+                                                .executes(context -> {
+                                                    ServerPlayer player = context.getSource().getPlayerOrException();
+                                                    String item = StringArgumentType.getString(context, "item");
+                                                    String currency = StringArgumentType.getString(context, "currency");
+                                                    return buyCheapest(player, item, currency);
+                                                })
+                                        )
+                                )
+                        )
+                        .then(Commands.argument("id", LongArgumentType.longArg(1))
+                                .executes(context -> {
+                                    ServerPlayer player = context.getSource().getPlayerOrException();
+                                    long id = LongArgumentType.getLong(context, "id");
+                                    return buyListing(player, id);
+                                })
+                        )
+                )
+                .then(Commands.literal("unlist")
+                        .then(Commands.argument("id", LongArgumentType.longArg(1))
+                                .executes(context -> {
+                                    ServerPlayer player = context.getSource().getPlayerOrException();
+                                    long id = LongArgumentType.getLong(context, "id");
+                                    return cancelOrder(player, id);
+                                })
+                        )
+                )
+                .then(Commands.literal("claim")
+                        .executes(context -> {
+                            ServerPlayer player = context.getSource().getPlayerOrException();
+                            return claimMailbox(player);
+                        })
+                )
         );
     }
     
@@ -131,16 +262,17 @@ public class SzkauhandlerCommands {
         }
         
         // 创建交易
-        Szkauhandler.getInstance().getTradeManager().createTrade(initiator, target, offeredItem, item1, amount1, item2, amount2, note);
-        initiator.sendSystemMessage(Component.literal("交易请求已发送"));
+        if (!Szkauhandler.getInstance().getTradeManager().createTrade(initiator, target, offeredItem, item1, amount1, item2, amount2, note)) {
+            return 0;
+        }
+        initiator.sendSystemMessage(Component.literal("交易请求已发送，提供的物品已托管，交易被拒绝或过期时退回"));
         return 1;
     }
     
-    private static int acceptTrade(ServerPlayer player, ServerPlayer target) {
-        // 查找与目标相关的待处理交易
-        UUID tradeId = findPendingTradeId(player, target);
+    private static int acceptTrade(ServerPlayer player, String name) {
+        // 查找与对方相关的待处理交易
+        UUID tradeId = findPendingTradeId(player, name);
         if (tradeId == null) {
-            player.sendSystemMessage(Component.literal("没有找到与该玩家的待处理交易"));
             return 0;
         }
         
@@ -148,11 +280,10 @@ public class SzkauhandlerCommands {
         return 1;
     }
     
-    private static int denyTrade(ServerPlayer player, ServerPlayer target) {
-        // 查找与目标相关的待处理交易
-        UUID tradeId = findPendingTradeId(player, target);
+    private static int denyTrade(ServerPlayer player, String name) {
+        // 查找与对方相关的待处理交易
+        UUID tradeId = findPendingTradeId(player, name);
         if (tradeId == null) {
-            player.sendSystemMessage(Component.literal("没有找到与该玩家的待处理交易"));
             return 0;
         }
         
@@ -160,11 +291,10 @@ public class SzkauhandlerCommands {
         return 1;
     }
     
-    private static int bargainTrade(ServerPlayer player, ServerPlayer target, int amount1, int amount2) {
-        // 查找与目标相关的待处理交易
-        UUID tradeId = findPendingTradeId(player, target);
+    private static int bargainTrade(ServerPlayer player, String name, int amount1, int amount2) {
+        // 查找与对方相关的待处理交易
+        UUID tradeId = findPendingTradeId(player, name);
         if (tradeId == null) {
-            player.sendSystemMessage(Component.literal("没有找到与该玩家的待处理交易"));
             return 0;
         }
         
@@ -180,6 +310,14 @@ public class SzkauhandlerCommands {
         player.sendSystemMessage(Component.literal("/szkauhandler barg <玩家> <数量1> <数量2> - 讨价还价"));
         player.sendSystemMessage(Component.literal("/szkauhandler help - 显示此帮助"));
         player.sendSystemMessage(Component.literal("/szkauhandler marklist - 显示交易简码列表"));
+        player.sendSystemMessage(Component.literal("/szkauhandler price <物品> [简码] - 查询物品的成交价格"));
+        player.sendSystemMessage(Component.literal("/szkauhandler sell <简码> <总价> - 以副手物品挂单出售，物品由市场托管"));
+        player.sendSystemMessage(Component.literal("/szkauhandler bid <物品> <数量> <简码> <总价> - 挂出买单，货币由市场托管，自动与卖单成交"));
+        player.sendSystemMessage(Component.literal("/szkauhandler market [物品] [简码] [页码] - 浏览市场挂单，不带参数显示自己的挂单"));
+        player.sendSystemMessage(Component.literal("/szkauhandler buy <挂单编号> - 购买指定挂单"));
+        player.sendSystemMessage(Component.literal("/szkauhandler buy cheapest <物品> <简码> - 购买最便宜的挂单"));
+        player.sendSystemMessage(Component.literal("/szkauhandler unlist <编号> - 撤下自己的卖单或买单"));
+        player.sendSystemMessage(Component.literal("/szkauhandler claim - 领取邮箱中的物品"));
         return 1;
     }
     
@@ -192,14 +330,8 @@ public class SzkauhandlerCommands {
             String itemId = entry.getValue();
             
             // 尝试获取物品的本地化名称
-            net.minecraft.resources.ResourceLocation rl = net.minecraft.resources.ResourceLocation.tryParse(itemId);
-            String itemName = itemId;
-            if (rl != null) {
-                net.minecraft.world.item.Item item = net.minecraft.core.registries.BuiltInRegistries.ITEM.get(rl);
-                if (item != null) {
-                    itemName = item.getDescription().getString();
-                }
-            }
+            net.minecraft.world.item.Item item = Szkauhandler.getInstance().getConfigManager().getCurrencyItem(code);
+            String itemName = item != null ? item.getDescription().getString() : itemId;
             
             message.append("|").append(itemName).append(" " ).append(itemId).append(" " ).append(code).append("\n" );
         }
@@ -208,20 +340,311 @@ public class SzkauhandlerCommands {
         return 1;
     }
     
-    private static UUID findPendingTradeId(ServerPlayer player, ServerPlayer target) {
-        // 查找最新的待处理交易
-        UUID latestTradeId = null;
-        long latestTime = 0;
-        
+    // 玩家名先在在线玩家中查找，再查服务器的玩家缓存，因此对方不在线也能找到；找不到时提示并返回null
+    private static UUID findPendingTradeId(ServerPlayer player, String name) {
+        UUID otherId;
+        try {
+            otherId = TradeFilter.resolvePlayer(name, player.getServer());
+        } catch (IllegalArgumentException e) {
+            player.sendSystemMessage(Component.literal(e.getMessage()));
+            return null;
+        }
+        // 通过索引直接查找双方之间最新的待处理交易
+        TradeManager.Trade trade = Szkauhandler.getInstance().getTradeManager()
+                .findLatestPendingTrade(player.getUUID(), otherId);
+        if (trade == null) {
+            player.sendSystemMessage(Component.literal("没有找到与该玩家的待处理交易"));
+            return null;
+        }
+        return trade.getId();
+    }
+    
+    // 补全与自己有待处理交易的玩家名，不在线的玩家从玩家缓存中取名字
+    private static CompletableFuture<Suggestions> suggestCounterparts(CommandContext<CommandSourceStack> context, SuggestionsBuilder builder) {
+        ServerPlayer player = context.getSource().getPlayer();
+        if (player == null) {
+            return builder.buildFuture();
+        }
+        MinecraftServer server = context.getSource().getServer();
+        Set<String> names = new LinkedHashSet<>();
         for (TradeManager.Trade trade : Szkauhandler.getInstance().getTradeManager().getPendingTrades(player.getUUID())) {
-            if ((trade.getInitiatorId().equals(target.getUUID()) && trade.getTargetId().equals(player.getUUID())) ||
-                (trade.getInitiatorId().equals(player.getUUID()) && trade.getTargetId().equals(target.getUUID()))) {
-                if (trade.getCreationTime() > latestTime) {
-                    latestTime = trade.getCreationTime();
-                    latestTradeId = trade.getId();
+            UUID otherId = trade.getInitiatorId().equals(player.getUUID()) ? trade.getTargetId() : trade.getInitiatorId();
+            ServerPlayer online = server.getPlayerList().getPlayer(otherId);
+            if (online != null) {
+                names.add(online.getName().getString());
+            } else {
+                server.getProfileCache().get(otherId).ifPresent(profile -> names.add(profile.getName()));
+            }
+        }
+        return SharedSuggestionProvider.suggest(names, builder);
+    }
+    
+    // 物品按物品ID匹配（可省略 minecraft:），未指定简码时显示所有有成交记录的货币
+    private static int showPrice(ServerPlayer player, String item, String currency) {
+        TradeManager tradeManager = Szkauhandler.getInstance().getTradeManager();
+        if (!tradeManager.isHistoryReady()) {
+            // 在服务器线程上，不等待回放完成
+            player.sendSystemMessage(Component.literal("交易历史正在加载，请稍后再试"));
+            return 0;
+        }
+        PriceIndex priceIndex = tradeManager.getPriceIndex();
+        String itemKey = TradeFilter.itemKey(item);
+        Set<String> currencies = currency != null ? Set.of(currency) : priceIndex.getCurrencies(itemKey);
+        StringBuilder message = new StringBuilder(String.format("[%s] 的成交价格：", item));
+        boolean found = false;
+        for (String code : currencies) {
+            PriceIndex.Stats[] stats = priceIndex.getStats(itemKey, code);
+            for (int i = 0; i < stats.length; i++) {
+                if (stats[i] == null) {
+                    continue;
                 }
+                found = true;
+                message.append(String.format("\n|%s 近%s：成交 %d 笔，共 %d 个，最低 %.2f，中位 %.2f，均价 %.2f",
+                        code,
+                        PriceIndex.WINDOW_NAMES[i],
+                        stats[i].trades(),
+                        stats[i].volume(),
+                        stats[i].min(),
+                        stats[i].median(),
+                        stats[i].vwap()));
+            }
+        }
+        for (String code : currencies) {
+            double[] percentiles = priceIndex.getPercentiles(itemKey, code);
+            if (percentiles == null) {
+                continue;
+            }
+            found = true;
+            message.append(String.format("\n|%s 全部历史（%d 笔）分位数：", code, priceIndex.getSketchCount(itemKey, code)));
+            for (int i = 0; i < percentiles.length; i++) {
+                message.append(String.format(" P%d=%.2f", Math.round(PriceIndex.PERCENTILES[i] * 100), percentiles[i]));
+            }
+        }
+        if (!found) {
+            message.append("\n没有成交记录");
+        }
+        player.sendSystemMessage(Component.literal(message.toString()));
+        return 1;
+    }
+    
+    private static int createListing(ServerPlayer player, String currency, int price) {
+        ItemStack stack = player.getOffhandItem();
+        if (stack.isEmpty()) {
+            player.sendSystemMessage(Component.literal("副手必须持有要出售的物品"));
+            return 0;
+        }
+        
+        ConfigManager configManager = Szkauhandler.getInstance().getConfigManager();
+        if (configManager.isPlayerBanned(player.getUUID())) {
+            player.sendSystemMessage(Component.literal("你已被禁止交易"));
+            return 0;
+        }
+        if (ItemTransfer.isBlocked(stack, player.getUUID())) {
+            player.sendSystemMessage(Component.literal("你提供的物品已被禁止交易"));
+            return 0;
+        }
+        if (!configManager.isCurrencyCode(currency)) {
+            player.sendSystemMessage(Component.literal("未知的交易简码：" + currency + "，使用 /szkauhandler marklist 查看"));
+            return 0;
+        }
+        
+        MarketManager marketManager = Szkauhandler.getInstance().getMarketManager();
+        if (marketManager.countOrders(player.getUUID()) >= MarketManager.MAX_ORDERS_PER_PLAYER) {
+            player.sendSystemMessage(Component.literal("挂单数量已达上限 " + MarketManager.MAX_ORDERS_PER_PLAYER));
+            return 0;
+        }
+        
+        // 从副手取走物品交由市场托管，撤单时退回
+        player.setItemInHand(InteractionHand.OFF_HAND, ItemStack.EMPTY);
+        MarketManager.Listing listing = marketManager.createListing(player, stack, currency, price);
+        player.sendSystemMessage(Component.literal(String.format("已挂单 #%d：[%s] x%d，总价 %s x%d",
+                listing.getId(), stack.getHoverName().getString(), stack.getCount(), currency, price)));
+        return 1;
+    }
+    
+    private static int createBid(ServerPlayer player, String item, int count, String currency, int price) {
+        ConfigManager configManager = Szkauhandler.getInstance().getConfigManager();
+        if (configManager.isPlayerBanned(player.getUUID())) {
+            player.sendSystemMessage(Component.literal("你已被禁止交易"));
+            return 0;
+        }
+        String itemKey = MarketManager.resolveItemKey(item);
+        if (itemKey == null) {
+            player.sendSystemMessage(Component.literal("未知的物品：" + item));
+            return 0;
+        }
+        Item wanted = MarketManager.resolveItem(itemKey);
+        if (configManager.isItemBlocked(wanted.getDescriptionId(), player.getUUID())) {
+            player.sendSystemMessage(Component.literal("求购的物品已被禁止交易"));
+            return 0;
+        }
+        if (!configManager.isCurrencyCode(currency)) {
+            player.sendSystemMessage(Component.literal("未知的交易简码：" + currency + "，使用 /szkauhandler marklist 查看"));
+            return 0;
+        }
+        Item currencyItem = configManager.getCurrencyItem(currency);
+        if (currencyItem == null) {
+            player.sendSystemMessage(Component.literal("交易简码对应的物品不存在：" + currency));
+            return 0;
+        }
+        
+        MarketManager marketManager = Szkauhandler.getInstance().getMarketManager();
+        if (marketManager.countOrders(player.getUUID()) >= MarketManager.MAX_ORDERS_PER_PLAYER) {
+            player.sendSystemMessage(Component.literal("挂单数量已达上限 " + MarketManager.MAX_ORDERS_PER_PLAYER));
+            return 0;
+        }
+        
+        // 从物品栏取走全部货币交由市场托管，成交后多余的部分退回
+        ItemStack funds = new ItemStack(currencyItem, price);
+        InventoryIndex index = InventoryIndex.of(player);
+        if (!index.has(funds)) {
+            player.sendSystemMessage(Component.literal("物品栏中没有足够的货币"));
+            return 0;
+        }
+        if (!index.remove(funds)) {
+            index.rollback();
+            player.sendSystemMessage(Component.literal("挂出买单失败，请重试"));
+            return 0;
+        }
+        MarketManager.Bid bid = marketManager.createBid(player, wanted, count, currency, currencyItem, price);
+        player.sendSystemMessage(Component.literal(String.format("已挂出买单 #%d：求购 [%s] x%d，总价不超过 %s x%d",
+                bid.getId(), itemKey, count, currency, price)));
+        return 1;
+    }
+    
+    // 指定简码时按单价分页显示卖单（第一页同时显示最高的买单），否则列出各货币的最优价
+    private static int showMarket(ServerPlayer player, String item, String currency, int page) {
+        String itemKey = MarketManager.resolveItemKey(item);
+        if (itemKey == null) {
+            player.sendSystemMessage(Component.literal("未知的物品：" + item));
+            return 0;
+        }
+        MarketManager marketManager = Szkauhandler.getInstance().getMarketManager();
+        StringBuilder message = new StringBuilder(String.format("[%s] 的市场挂单：", itemKey));
+        
+        if (currency == null) {
+            Set<String> currencies = marketManager.getCurrencies(itemKey);
+            if (currencies.isEmpty()) {
+                message.append("\n没有挂单");
+            }
+            for (String code : currencies) {
+                MarketManager.Listing cheapest = marketManager.cheapest(itemKey, code);
+                MarketManager.Bid highest = marketManager.highestBid(itemKey, code);
+                message.append(String.format("\n|%s：%d 个卖单，最低单价 %s；%d 个买单，最高单价 %s",
+                        code,
+                        marketManager.getAskCount(itemKey, code),
+                        cheapest != null ? String.format("%.2f（#%d）", cheapest.getUnitPrice(), cheapest.getId()) : "-",
+                        marketManager.getBidCount(itemKey, code),
+                        highest != null ? String.format("%.2f（#%d）", highest.getUnitPrice(), highest.getId()) : "-"));
+            }
+            player.sendSystemMessage(Component.literal(message.toString()));
+            return 1;
+        }
+        
+        int total = marketManager.getAskCount(itemKey, currency);
+        int totalPages = Math.max(1, (total + MARKET_PAGE_SIZE - 1) / MARKET_PAGE_SIZE);
+        List<MarketManager.Listing> listings = marketManager.browse(itemKey, currency, page, MARKET_PAGE_SIZE);
+        if (listings.isEmpty()) {
+            message.append("\n没有卖单");
+        }
+        for (MarketManager.Listing listing : listings) {
+            message.append(formatListing(listing));
+        }
+        message.append(String.format("\n第 %d/%d 页", page, totalPages));
+        if (page == 1) {
+            for (MarketManager.Bid bid : marketManager.browseBids(itemKey, currency, 1, MARKET_PAGE_SIZE)) {
+                message.append(formatBid(bid));
             }
         }
-        return latestTradeId;
+        player.sendSystemMessage(Component.literal(message.toString()));
+        return 1;
+    }
+    
+    private static int showMyListings(ServerPlayer player) {
+        MarketManager marketManager = Szkauhandler.getInstance().getMarketManager();
+        List<MarketManager.Listing> listings = marketManager.getListings(player.getUUID());
+        List<MarketManager.Bid> bids = marketManager.getBids(player.getUUID());
+        StringBuilder message = new StringBuilder("你的挂单：");
+        if (listings.isEmpty() && bids.isEmpty()) {
+            message.append("\n没有挂单");
+        }
+        for (MarketManager.Listing listing : listings) {
+            message.append(formatListing(listing));
+        }
+        for (MarketManager.Bid bid : bids) {
+            message.append(formatBid(bid));
+        }
+        int pending = Szkauhandler.getInstance().getEscrowStore().countPending(player.getUUID());
+        if (pending > 0) {
+            message.append(String.format("\n邮箱中有 %d 组待领取物品，使用 /szkauhandler claim 领取", pending));
+        }
+        player.sendSystemMessage(Component.literal(message.toString()));
+        return 1;
+    }
+    
+    private static String formatListing(MarketManager.Listing listing) {
+        return String.format("\n|#%d %s 出售 [%s] x%d，总价 %s x%d（单价 %.2f）",
+                listing.getId(),
+                listing.getSellerName(),
+                listing.getItem().getHoverName().getString(),
+                listing.getItem().getCount(),
+                listing.getCurrency(),
+                listing.getPrice(),
+                listing.getUnitPrice());
+    }
+    
+    private static String formatBid(MarketManager.Bid bid) {
+        return String.format("\n|#%d %s 求购 [%s] %d/%d，总价 %s x%d（单价 %.2f）",
+                bid.getId(),
+                bid.getBidderName(),
+                bid.getItemKey(),
+                bid.getRemaining(),
+                bid.getCount(),
+                bid.getCurrency(),
+                bid.getPrice(),
+                bid.getUnitPrice());
+    }
+    
+    private static int buyListing(ServerPlayer player, long id) {
+        if (Szkauhandler.getInstance().getConfigManager().isPlayerBanned(player.getUUID())) {
+            player.sendSystemMessage(Component.literal("你已被禁止交易"));
+            return 0;
+        }
+        return Szkauhandler.getInstance().getMarketManager().buy(player, id) ? 1 : 0;
+    }
+    
+    private static int buyCheapest(ServerPlayer player, String item, String currency) {
+        if (Szkauhandler.getInstance().getConfigManager().isPlayerBanned(player.getUUID())) {
+            player.sendSystemMessage(Component.literal("你已被禁止交易"));
+            return 0;
+        }
+        String itemKey = MarketManager.resolveItemKey(item);
+        if (itemKey == null) {
+            player.sendSystemMessage(Component.literal("未知的物品：" + item));
+            return 0;
+        }
+        return Szkauhandler.getInstance().getMarketManager().buyCheapest(player, itemKey, currency) ? 1 : 0;
+    }
+    
+    private static int cancelOrder(ServerPlayer player, long id) {
+        if (!Szkauhandler.getInstance().getMarketManager().cancel(player, id)) {
+            player.sendSystemMessage(Component.literal("没有找到你的挂单 #" + id));
+            return 0;
+        }
+        player.sendSystemMessage(Component.literal("已撤下挂单 #" + id));
+        return 1;
+    }
+    
+    private static int claimMailbox(ServerPlayer player) {
+        EscrowStore escrowStore = Szkauhandler.getInstance().getEscrowStore();
+        int claimed = escrowStore.claim(player);
+        int remaining = escrowStore.countPending(player.getUUID());
+        if (claimed == 0 && remaining == 0) {
+            player.sendSystemMessage(Component.literal("邮箱中没有物品"));
+            return 0;
+        }
+        player.sendSystemMessage(Component.literal(String.format("已领取 %d 组物品%s", claimed,
+                remaining > 0 ? "，物品栏已满，邮箱中还剩 " + remaining + " 组" : "")));
+        return claimed > 0 ? 1 : 0;
     }
 }
\ No newline at end of file
@@ -0,0 +1,155 @@
+package dev.xlonia.szkauhandler;
+
+import net.minecraft.core.registries.BuiltInRegistries;
+import net.minecraft.resources.ResourceLocation;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.server.level.ServerPlayer;
+import net.minecraft.world.item.ItemStack;
+
+import java.util.Locale;
+import java.util.UUID;
+
+// 管理员查询用的过滤条件：物品、状态、参与者、时间范围，未设置的条件不参与过滤
+// 格式：item:<简码或物品ID> status:<状态> player:<玩家名> since:<时长> until:<时长>，时长如 30m、24h、7d
+public class TradeFilter {
+    private String item;
+    private TradeManager.Trade.Status status;
+    private UUID participant;
+    private long since = Long.MIN_VALUE;
+    private long until = Long.MAX_VALUE;
+    
+    public static TradeFilter all() {
+        return new TradeFilter();
+    }
+    
+    public static TradeFilter participant(UUID playerId) {
+        TradeFilter filter = new TradeFilter();
+        filter.participant = playerId;
+        return filter;
+    }
+    
+    // 解析失败时抛出 IllegalArgumentException，消息可直接显示给玩家
+    // 玩家名需要查询服务器的玩家缓存，只能在服务器线程上调用
+    public static TradeFilter parse(String text, MinecraftServer server) {
+        TradeFilter filter = new TradeFilter();
+        long now = System.currentTimeMillis();
+        for (String token : text.trim().split("\\s+")) {
+            if (token.isEmpty()) {
+                continue;
+            }
+            int colon = token.indexOf(':');
+            if (colon <= 0 || colon == token.length() - 1) {
+                throw new IllegalArgumentException("无法识别的过滤条件: " + token);
+            }
+            String key = token.substring(0, colon).toLowerCase(Locale.ROOT);
+            String value = token.substring(colon + 1);
+            switch (key) {
+                case "item" -> filter.item = itemKey(value);
+                case "status" -> {
+                    try {
+                        filter.status = TradeManager.Trade.Status.valueOf(value.toUpperCase(Locale.ROOT));
+                    } catch (IllegalArgumentException e) {
+                        throw new IllegalArgumentException("未知的交易状态: " + value);
+                    }
+                }
+                case "player" -> filter.participant = resolvePlayer(value, server);
+                case "since" -> filter.since = now - parseDuration(value);
+                case "until" -> filter.until = now - parseDuration(value);
+                default -> throw new IllegalArgumentException("无法识别的过滤条件: " + token);
+            }
+        }
+        return filter;
+    }
+    
+    // 在线玩家优先，否则查服务器的玩家缓存；找不到时抛出 IllegalArgumentException
+    static UUID resolvePlayer(String name, MinecraftServer server) {
+        ServerPlayer online = server.getPlayerList().getPlayerByName(name);
+        if (online != null) {
+            return online.getUUID();
+        }
+        return server.getProfileCache().get(name)
+                .map(profile -> profile.getId())
+                .orElseThrow(() -> new IllegalArgumentException("找不到玩家: " + name));
+    }
+    
+    static long parseDuration(String value) {
+        if (value.length() >= 2) {
+            try {
+                long amount = Long.parseLong(value.substring(0, value.length() - 1));
+                switch (Character.toLowerCase(value.charAt(value.length() - 1))) {
+                    case 'm':
+                        return amount * 60_000L;
+                    case 'h':
+                        return amount * 3_600_000L;
+                    case 'd':
+                        return amount * 86_400_000L;
+                    default:
+                        break;
+                }
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        throw new IllegalArgumentException("无效的时长: " + value + "（例如 30m、24h、7d）");
+    }
+    
+    // 物品ID与简码统一为小写并去掉旧记录显示名两侧的方括号，用作索引键
+    // 省略命名空间的物品ID补全为 minecraft:，不是物品ID的简码保持原样
+    public static String itemKey(String name) {
+        String key = name;
+        if (key.startsWith("[") && key.endsWith("]") && key.length() >= 2) {
+            key = key.substring(1, key.length() - 1);
+        }
+        key = key.toLowerCase(Locale.ROOT);
+        if (key.indexOf(':') < 0) {
+            ResourceLocation id = ResourceLocation.tryParse(key);
+            if (id != null && BuiltInRegistries.ITEM.containsKey(id)) {
+                return id.toString();
+            }
+        }
+        return key;
+    }
+    
+    public static String itemKey(ItemStack stack) {
+        return BuiltInRegistries.ITEM.getKey(stack.getItem()).toString();
+    }
+    
+    public String getItem() {
+        return item;
+    }
+    
+    public TradeManager.Trade.Status getStatus() {
+        return status;
+    }
+    
+    public UUID getParticipant() {
+        return participant;
+    }
+    
+    public long getSince() {
+        return since;
+    }
+    
+    public long getUntil() {
+        return until;
+    }
+    
+    public boolean hasTimeRange() {
+        return since != Long.MIN_VALUE || until != Long.MAX_VALUE;
+    }
+    
+    public boolean matches(TradeManager.Trade trade) {
+        if (status != null && trade.getStatus() != status) {
+            return false;
+        }
+        if (participant != null && !participant.equals(trade.getInitiatorId()) && !participant.equals(trade.getTargetId())) {
+            return false;
+        }
+        if (trade.getCreationTime() < since || trade.getCreationTime() > until) {
+            return false;
+        }
+        return item == null
+                || item.equals(itemKey(trade.getOfferedItem()))
+                || item.equals(itemKey(trade.getRequestedItem1()))
+                || item.equals(itemKey(trade.getRequestedItem2()));
+    }
+}
\ No newline at end of file
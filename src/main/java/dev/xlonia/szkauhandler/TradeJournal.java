@@ -0,0 +1,310 @@
+package dev.xlonia.szkauhandler;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.UUID;
+import java.util.function.ObjLongConsumer;
+import java.util.zip.CRC32;
+
+// 只追加的二进制交易日志段，由 HistoryStore 按大小/时间滚动
+// 每条记录格式：[int 长度][int CRC32][负载]，尾部损坏的记录在回放时截断
+public class TradeJournal {
+    private static final Logger LOGGER = LogManager.getLogger();
+    private static final int MAGIC = 0x534B484A; // "SKHJ"
+    private static final int VERSION = 1;
+    static final int FILE_HEADER_SIZE = 8;
+    static final int RECORD_HEADER_SIZE = 8;
+    private static final int MAX_RECORD_SIZE = 64 * 1024;
+    
+    private final Path journalFile;
+    private final long segmentId;
+    private final long createdTime;
+    private FileChannel channel;
+    // 按偏移随机读取单条记录用的只读通道，与写入通道分开
+    private FileChannel reader;
+    private boolean dirty;
+    private long size;
+    private int recordCount;
+    private long firstTimestamp = Long.MAX_VALUE;
+    private long lastTimestamp = Long.MIN_VALUE;
+    
+    public TradeJournal(Path journalFile, long segmentId) {
+        this.journalFile = journalFile;
+        this.segmentId = segmentId;
+        this.createdTime = System.currentTimeMillis();
+    }
+    
+    public long getSegmentId() {
+        return segmentId;
+    }
+    
+    public Path getFile() {
+        return journalFile;
+    }
+    
+    public synchronized long size() {
+        return size;
+    }
+    
+    public synchronized int getRecordCount() {
+        return recordCount;
+    }
+    
+    public synchronized long getLastTimestamp() {
+        return lastTimestamp;
+    }
+    
+    // 首条记录的时间，空段取创建时间，用于按时间滚动
+    public synchronized long getStartTime() {
+        return recordCount > 0 ? firstTimestamp : createdTime;
+    }
+    
+    // 追加一条记录，返回记录在段内的偏移
+    public synchronized long append(TradeManager.TradeHistory history) throws IOException {
+        byte[] payload = encode(history);
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_HEADER_SIZE + payload.length);
+        buffer.putInt(payload.length);
+        buffer.putInt((int) crc.getValue());
+        buffer.put(payload);
+        buffer.flip();
+        
+        FileChannel out = ensureOpen();
+        long offset = size;
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+        size += RECORD_HEADER_SIZE + payload.length;
+        dirty = true;
+        track(history);
+        return offset;
+    }
+    
+    // 顺序读取全部记录，连同记录的偏移交给consumer；遇到不完整、校验失败或无法解析的记录时截断文件尾部
+    // 不使用内存映射：映射在被回收前会占住文件，Windows 上随后的截断与删除段都会失败
+    public synchronized int replay(HistoryDictionary dictionary, ObjLongConsumer<TradeManager.TradeHistory> consumer) {
+        if (!Files.exists(journalFile)) {
+            return 0;
+        }
+        int count = 0;
+        long validEnd = 0;
+        long fileSize;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(journalFile), 1 << 16))) {
+            fileSize = Files.size(journalFile);
+            if (fileSize >= FILE_HEADER_SIZE) {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                    LOGGER.error("交易日志文件格式不正确: {}", journalFile);
+                    return 0;
+                }
+                validEnd = FILE_HEADER_SIZE;
+                CRC32 crc = new CRC32();
+                while (fileSize - validEnd >= RECORD_HEADER_SIZE) {
+                    int length = in.readInt();
+                    int checksum = in.readInt();
+                    if (length <= 0 || length > MAX_RECORD_SIZE || length > fileSize - validEnd - RECORD_HEADER_SIZE) {
+                        break;
+                    }
+                    byte[] payload = new byte[length];
+                    in.readFully(payload);
+                    crc.reset();
+                    crc.update(payload);
+                    if ((int) crc.getValue() != checksum) {
+                        break;
+                    }
+                    TradeManager.TradeHistory history;
+                    try {
+                        history = decode(payload, dictionary);
+                    } catch (IOException | RuntimeException e) {
+                        // 校验通过但内容无法解析，与校验失败同样处理
+                        break;
+                    }
+                    track(history);
+                    consumer.accept(history, validEnd);
+                    validEnd += RECORD_HEADER_SIZE + length;
+                    count++;
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.error("读取交易日志失败: {}", e.getMessage());
+            size = validEnd;
+            return count;
+        }
+        if (fileSize > validEnd) {
+            LOGGER.warn("交易日志 {} 在偏移 {} 处记录损坏或不完整，截断其后内容", journalFile.getFileName(), validEnd);
+        }
+        size = validEnd;
+        truncate(validEnd);
+        return count;
+    }
+    
+    // 读取偏移处的单条记录，只读取这一条记录的字节；玩家与物品登记到给定的字典
+    public TradeManager.TradeHistory read(long offset, HistoryDictionary dictionary) throws IOException {
+        FileChannel file = ensureReader();
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        readFully(file, header, offset);
+        header.flip();
+        int length = header.getInt();
+        int checksum = header.getInt();
+        if (length <= 0 || length > MAX_RECORD_SIZE) {
+            throw new IOException("交易日志记录长度不正确: " + length);
+        }
+        ByteBuffer payload = ByteBuffer.allocate(length);
+        readFully(file, payload, offset + RECORD_HEADER_SIZE);
+        CRC32 crc = new CRC32();
+        crc.update(payload.array());
+        if ((int) crc.getValue() != checksum) {
+            throw new IOException("交易日志记录校验失败，偏移 " + offset);
+        }
+        return decode(payload.array(), dictionary);
+    }
+    
+    private synchronized FileChannel ensureReader() throws IOException {
+        if (reader == null) {
+            reader = FileChannel.open(journalFile, StandardOpenOption.READ);
+        }
+        return reader;
+    }
+    
+    private static void readFully(FileChannel file, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = file.read(buffer, position + buffer.position());
+            if (read < 0) {
+                throw new IOException("交易日志记录不完整，偏移 " + position);
+            }
+        }
+    }
+    
+    private void track(TradeManager.TradeHistory history) {
+        recordCount++;
+        firstTimestamp = Math.min(firstTimestamp, history.getTimestamp());
+        lastTimestamp = Math.max(lastTimestamp, history.getTimestamp());
+    }
+    
+    private void truncate(long validEnd) {
+        try (FileChannel file = FileChannel.open(journalFile, StandardOpenOption.WRITE)) {
+            if (file.size() > validEnd) {
+                file.truncate(validEnd);
+                file.force(true);
+            }
+        } catch (IOException e) {
+            LOGGER.error("截断交易日志失败: {}", e.getMessage());
+        }
+    }
+    
+    public synchronized void sync() {
+        if (!dirty || channel == null) {
+            return;
+        }
+        try {
+            channel.force(false);
+            dirty = false;
+        } catch (IOException e) {
+            LOGGER.error("交易日志刷盘失败: {}", e.getMessage());
+        }
+    }
+    
+    public synchronized void close() {
+        if (reader != null) {
+            try {
+                reader.close();
+            } catch (IOException e) {
+                LOGGER.error("关闭交易日志失败: {}", e.getMessage());
+            }
+            reader = null;
+        }
+        if (channel != null) {
+            try {
+                channel.force(false);
+                channel.close();
+            } catch (IOException e) {
+                LOGGER.error("关闭交易日志失败: {}", e.getMessage());
+            }
+            channel = null;
+            dirty = false;
+        }
+    }
+    
+    public synchronized void delete() {
+        close();
+        try {
+            Files.deleteIfExists(journalFile);
+        } catch (IOException e) {
+            LOGGER.error("删除交易日志段失败: {}", e.getMessage());
+        }
+    }
+    
+    private FileChannel ensureOpen() throws IOException {
+        if (channel != null) {
+            return channel;
+        }
+        Files.createDirectories(journalFile.getParent());
+        channel = FileChannel.open(journalFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        if (channel.size() == 0) {
+            ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+            header.putInt(MAGIC);
+            header.putInt(VERSION);
+            header.flip();
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+        }
+        size = channel.size();
+        return channel;
+    }
+    
+    private static byte[] encode(TradeManager.TradeHistory history) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(history.getStatus().ordinal());
+        out.writeLong(history.getTimestamp());
+        writeUUID(out, history.getTradeId());
+        writeUUID(out, history.getInitiatorId());
+        writeUUID(out, history.getTargetId());
+        out.writeUTF(history.getOfferedItem());
+        out.writeInt(history.getOfferedAmount());
+        out.writeUTF(history.getRequestedItem1());
+        out.writeInt(history.getRequestedAmount1());
+        out.writeUTF(history.getRequestedItem2());
+        out.writeInt(history.getRequestedAmount2());
+        out.writeBoolean(history.getNote() != null);
+        if (history.getNote() != null) {
+            out.writeUTF(history.getNote());
+        }
+        return bytes.toByteArray();
+    }
+    
+    private static TradeManager.TradeHistory decode(byte[] payload, HistoryDictionary dictionary) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        TradeManager.Trade.Status status = TradeManager.Trade.Status.values()[in.readUnsignedByte()];
+        long timestamp = in.readLong();
+        UUID tradeId = readUUID(in);
+        UUID initiatorId = readUUID(in);
+        UUID targetId = readUUID(in);
+        String offeredItem = in.readUTF();
+        int offeredAmount = in.readInt();
+        String requestedItem1 = in.readUTF();
+        int requestedAmount1 = in.readInt();
+        String requestedItem2 = in.readUTF();
+        int requestedAmount2 = in.readInt();
+        String note = in.readBoolean() ? in.readUTF() : null;
+        return new TradeManager.TradeHistory(dictionary, tradeId, initiatorId, targetId, offeredItem, offeredAmount,
+                requestedItem1, requestedAmount1, requestedItem2, requestedAmount2, note, timestamp, status);
+    }
+    
+    private static void writeUUID(DataOutputStream out, UUID id) throws IOException {
+        out.writeLong(id.getMostSignificantBits());
+        out.writeLong(id.getLeastSignificantBits());
+    }
+    
+    private static UUID readUUID(DataInputStream in) throws IOException {
+        return new UUID(in.readLong(), in.readLong());
+    }
+}
\ No newline at end of file
@@ -0,0 +1,140 @@
+package dev.xlonia.szkauhandler;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// 交易文本日志的后台写入器
+// 服务器线程只把记录放入有界环形缓冲区，格式化与写盘都在后台线程批量完成
+public class TradeLogWriter {
+    private static final Logger LOGGER = LogManager.getLogger();
+    private static final int CAPACITY = 4096;
+    private static final int BATCH_SIZE = 128;
+    private static final long FLUSH_INTERVAL_MILLIS = 1000;
+    private static final long CLOSE_TIMEOUT_MILLIS = 5000;
+    
+    private final Path logFile;
+    private final ArrayBlockingQueue<TradeManager.TradeHistory> buffer = new ArrayBlockingQueue<>(CAPACITY);
+    private Thread worker;
+    private volatile boolean running;
+    private final AtomicLong droppedCount = new AtomicLong();
+    
+    public TradeLogWriter(Path logFile) {
+        this.logFile = logFile;
+    }
+    
+    public void append(TradeManager.TradeHistory history) {
+        ensureStarted();
+        if (!buffer.offer(history)) {
+            // 缓冲区已满时不阻塞服务器线程，丢弃并在下次写盘时报告
+            droppedCount.incrementAndGet();
+        }
+    }
+    
+    private synchronized void ensureStarted() {
+        if (running) {
+            return;
+        }
+        running = true;
+        worker = new Thread(this::run, "szkauhandler-trade-log");
+        worker.setDaemon(true);
+        worker.start();
+    }
+    
+    // 停止后台线程，写完缓冲区内剩余的记录
+    public synchronized void close() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        try {
+            worker.join(CLOSE_TIMEOUT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        worker = null;
+    }
+    
+    private void run() {
+        List<TradeManager.TradeHistory> batch = new ArrayList<>(BATCH_SIZE);
+        StringBuilder pending = new StringBuilder();
+        int pendingCount = 0;
+        long nextFlush = System.currentTimeMillis() + FLUSH_INTERVAL_MILLIS;
+        
+        try (FileChannel channel = openChannel()) {
+            while (running || !buffer.isEmpty()) {
+                long wait = Math.max(0, nextFlush - System.currentTimeMillis());
+                TradeManager.TradeHistory first = buffer.poll(wait, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    buffer.drainTo(batch, BATCH_SIZE - 1);
+                    for (TradeManager.TradeHistory history : batch) {
+                        pending.append(format(history));
+                    }
+                    pendingCount += batch.size();
+                    batch.clear();
+                }
+                
+                long now = System.currentTimeMillis();
+                if (pendingCount >= BATCH_SIZE || now >= nextFlush || !running) {
+                    flush(channel, pending);
+                    pendingCount = 0;
+                    nextFlush = now + FLUSH_INTERVAL_MILLIS;
+                }
+            }
+            flush(channel, pending);
+        } catch (IOException e) {
+            LOGGER.error("记录交易日志失败: {}", e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    private FileChannel openChannel() throws IOException {
+        Files.createDirectories(logFile.getParent());
+        return FileChannel.open(logFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+    
+    private void flush(FileChannel channel, StringBuilder pending) throws IOException {
+        long dropped = droppedCount.getAndSet(0);
+        if (dropped > 0) {
+            LOGGER.warn("交易日志缓冲区已满，丢弃了 {} 条记录", dropped);
+        }
+        if (pending.length() == 0) {
+            return;
+        }
+        ByteBuffer bytes = ByteBuffer.wrap(pending.toString().getBytes(StandardCharsets.UTF_8));
+        while (bytes.hasRemaining()) {
+            channel.write(bytes);
+        }
+        pending.setLength(0);
+    }
+    
+    private static String format(TradeManager.TradeHistory history) {
+        return String.format("[%s] 交易ID: %s, 发起者: %s, 目标: %s, 状态: %s, 提供: %s x%d, 请求: %s x%d %s, 备注: %s%n",
+                new Date(history.getTimestamp()).toString(),
+                history.getTradeId(),
+                history.getInitiatorId(),
+                history.getTargetId(),
+                history.getStatus().name(),
+                history.getOfferedItem(),
+                history.getOfferedAmount(),
+                history.getRequestedItem1(),
+                history.getRequestedAmount1(),
+                history.getRequestedItem2().equals("0") ? "" : String.format("和 %s x%d", history.getRequestedItem2(), history.getRequestedAmount2()),
+                history.getNote() != null ? history.getNote() : "无");
+    }
+}
\ No newline at end of file
@@ -2,19 +2,21 @@ package dev.xlonia.szkauhandler;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.JsonDeserializationContext;
+import com.google.gson.JsonDeserializer;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
 import com.google.gson.reflect.TypeToken;
-import net.minecraft.core.Registry;
 import net.minecraft.core.registries.BuiltInRegistries;
-import net.minecraft.nbt.CompoundTag;
-import net.minecraft.nbt.ListTag;
-import net.minecraft.nbt.Tag;
 import net.minecraft.network.chat.Component;
-import net.minecraft.resources.ResourceLocation;
-import net.minecraft.server.level.ServerLevel;
+import net.minecraft.server.MinecraftServer;
 import net.minecraft.server.level.ServerPlayer;
+import net.minecraft.world.InteractionHand;
 import net.minecraft.world.item.Item;
 import net.minecraft.world.item.ItemStack;
 import net.minecraftforge.event.TickEvent;
+import net.minecraftforge.event.entity.player.PlayerEvent;
 import net.minecraftforge.eventbus.api.SubscribeEvent;
 import net.minecraftforge.fml.loading.FMLPaths;
 
@@ -22,25 +24,73 @@ import java.io.*;
 import java.lang.reflect.Type;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
-import java.util.concurrent.locks.ReentrantLock;
-import java.util.stream.Collectors;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicReference;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+// 线程约定：
+// - 创建/接受/拒绝/还价、过期处理与 saveData 只在服务器线程上调用，服务器线程是唯一的写者
+// - getPendingTrades、findLatestPendingTrade 可在任意线程调用，返回的是调用时的快照
+// - 历史查询可能读盘，在查询线程上调用；在线玩家的最近记录在登录时预读，按玩家分页时直接使用
+// - 交易状态的迁移通过 Trade 上的 CAS 完成，写盘与日志在各自的后台线程上进行
+// - 发起交易时提供的物品由 EscrowStore 托管，接受时只需要目标的物品栏在线，发起者可以已经下线
+// - 交易历史在服务器启动时由后台线程回放，回放期间新产生的记录暂存在内存中，完成后由服务器线程补写；
+//   查询线程上的历史查询通过 awaitHistory 等待回放完成，服务器线程上只检查 isHistoryReady 而不阻塞
 public class TradeManager {
     private static final Logger LOGGER = LogManager.getLogger();
-    private final Map<UUID, Trade> pendingTrades = new HashMap<>();
-    private final Map<UUID, List<TradeHistory>> tradeHistories = new HashMap<>();
-    private final Map<UUID, ReentrantLock> tradeLocks = new HashMap<>();
-    private long lastCleanupTime = System.currentTimeMillis();
+    private final Map<UUID, Trade> pendingTrades = new ConcurrentHashMap<>();
+    // 玩家 -> 其参与的待处理交易ID（发起或被邀请）
+    private final Map<UUID, Set<UUID>> playerTradeIndex = new ConcurrentHashMap<>();
+    // 发起者 -> 目标 -> 按创建时间排序的待处理交易
+    private final Map<UUID, Map<UUID, Deque<Trade>>> pairTradeIndex = new ConcurrentHashMap<>();
+    // 物品键 -> 提供或请求了该物品的待处理交易ID
+    private final Map<String, Set<UUID>> itemTradeIndex = new ConcurrentHashMap<>();
+    // 创建时间 -> 该毫秒内创建的待处理交易ID，按时间有序，时间范围查询直接取子表
+    private final ConcurrentSkipListMap<Long, Set<UUID>> creationTradeIndex = new ConcurrentSkipListMap<>();
+    // 按截止时间排序的过期队列；已完成/已拒绝的交易在出队时惰性跳过，只在服务器线程上访问
+    private final PriorityQueue<Trade> expiryQueue = new PriorityQueue<>(Comparator.comparingLong(Trade::getExpiryTime));
     private long lastSaveTime = System.currentTimeMillis();
+    private final TradeLogWriter logWriter = new TradeLogWriter(
+            FMLPaths.CONFIGDIR.get().resolve("szkauhandler").resolve("trade_log.txt"));
+    private final HistoryStore historyStore = new HistoryStore(
+            FMLPaths.CONFIGDIR.get().resolve("szkauhandler").resolve("history"),
+            FMLPaths.CONFIGDIR.get().resolve("szkauhandler").resolve("trade_journal.bin"));
+    private final PriceIndex priceIndex = new PriceIndex();
+    // 后台回放交易历史的任务，loadData 之前与服务器关闭之后为null
+    private volatile CompletableFuture<Void> historyLoad;
+    // 回放完成且暂存的记录已补写后完成，查询线程在此等待；服务器关闭时换成新的
+    private volatile CompletableFuture<Void> historyReady = new CompletableFuture<>();
+    // 只由服务器线程写入
+    private volatile boolean historyLoaded;
+    // 回放期间产生的交易记录，只在服务器线程上访问
+    private final List<TradeHistory> bufferedHistories = new ArrayList<>();
     
-    public void createTrade(ServerPlayer initiator, ServerPlayer target, ItemStack offeredItem, String requestedItem1, int amount1, String requestedItem2, int amount2, String note) {
+    // offeredItem 是发起者副手中的物品；校验通过后从副手取走并托管，返回false表示校验不通过
+    public boolean createTrade(ServerPlayer initiator, ServerPlayer target, ItemStack offeredItem, String requestedItem1, int amount1, String requestedItem2, int amount2, String note) {
+        // 提供的物品在托管期间不会改变，发起时校验一次即可
+        if (!ItemTransfer.validateShulkerBox(offeredItem, initiator.getUUID())) {
+            initiator.sendSystemMessage(Component.literal("潜影盒中含有被禁止交易的物品"));
+            return false;
+        }
+        
         UUID tradeId = UUID.randomUUID();
         Trade trade = new Trade(tradeId, initiator, target, offeredItem, requestedItem1, amount1, requestedItem2, amount2, note);
+        // 无限模式下不从发起者处取走物品
+        if (!Szkauhandler.getInstance().getConfigManager().isInfiniteModeEnabled(initiator.getUUID())) {
+            initiator.setItemInHand(InteractionHand.OFF_HAND, ItemStack.EMPTY);
+            Szkauhandler.getInstance().getEscrowStore().hold(tradeId, initiator.getUUID(), trade.getOfferedItem());
+            trade.setEscrowed(true);
+        }
         pendingTrades.put(tradeId, trade);
+        indexTrade(trade);
+        expiryQueue.add(trade);
         
         // 发送交易请求给目标玩家
         Component message = Component.literal(String.format("玩家[%s]想要与你交易，他提供[%s][%d]，你提供[%s][%d]%s，备注是[%s]，请问是否愿意？请用/szkauhandler %s acce/deny/barg 反应",
@@ -53,592 +103,458 @@ public class TradeManager {
                 note != null ? note : "",
                 initiator.getName().getString()));
         target.sendSystemMessage(message);
-        
-        // 记录交易历史
-        addTradeHistory(initiator.getUUID(), trade);
-        addTradeHistory(target.getUUID(), trade);
+        // 交易历史只在交易结束（完成/拒绝/过期）时写入一次
+        return true;
     }
     
     public void acceptTrade(ServerPlayer player, UUID tradeId) {
-        ReentrantLock lock = tradeLocks.computeIfAbsent(tradeId, k -> new ReentrantLock());
-        lock.lock();
-        try {
-            Trade trade = pendingTrades.get(tradeId);
-            if (trade == null) {
-                player.sendSystemMessage(Component.literal("交易不存在或已过期"));
+        Trade trade = pendingTrades.get(tradeId);
+        if (trade == null) {
+            player.sendSystemMessage(Component.literal("交易不存在或已过期"));
+            return;
+        }
+        
+        if (!trade.getTargetId().equals(player.getUUID()) && !trade.getInitiatorId().equals(player.getUUID())) {
+            player.sendSystemMessage(Component.literal("你不是此交易的参与者"));
+            return;
+        }
+        
+        if (trade.isExpired()) {
+            expireTrade(player.getServer(), trade);
+            player.sendSystemMessage(Component.literal("交易已过期"));
+            return;
+        }
+        
+        // 目标玩家接受交易，或发起者接受还价
+        Trade.Status expected = trade.getTargetId().equals(player.getUUID()) ? Trade.Status.PENDING : Trade.Status.BARGAINING;
+        ItemTransfer.Result result = ItemTransfer.Result.INVALID;
+        if (trade.getStatus() == expected) {
+            // 抢占交易，其他操作在处理期间都会失败
+            if (!trade.transition(expected, Trade.Status.PROCESSING)) {
+                player.sendSystemMessage(Component.literal("交易正在处理中或状态已改变"));
                 return;
             }
-            
-            if (!trade.getTargetId().equals(player.getUUID()) && !trade.getInitiatorId().equals(player.getUUID())) {
-                player.sendSystemMessage(Component.literal("你不是此交易的参与者"));
-                return;
+            try {
+                result = executeTrade(trade, player);
+            } finally {
+                if (result != ItemTransfer.Result.SUCCESS) {
+                    trade.transition(Trade.Status.PROCESSING, expected);
+                }
             }
+        }
+        
+        if (result == ItemTransfer.Result.SUCCESS) {
+            // 原子化更新交易状态
+            completeTrade(tradeId, trade);
             
-            if (trade.isExpired()) {
-                pendingTrades.remove(tradeId);
-                player.sendSystemMessage(Component.literal("交易已过期"));
-                return;
+            // 发送成功消息给双方
+            ServerPlayer initiator = player.serverLevel().getServer().getPlayerList().getPlayer(trade.getInitiatorId());
+            ServerPlayer target = player.serverLevel().getServer().getPlayerList().getPlayer(trade.getTargetId());
+            if (initiator != null) {
+                initiator.sendSystemMessage(Component.literal("交易成功！"));
             }
-            
-            boolean tradeSuccess = false;
-            if (trade.getStatus() == Trade.Status.PENDING) {
-                if (trade.getTargetId().equals(player.getUUID())) {
-                    // 目标玩家接受交易
-                    tradeSuccess = executeTrade(trade, player);
-                }
-            } else if (trade.getStatus() == Trade.Status.BARGAINING) {
-                if (trade.getInitiatorId().equals(player.getUUID())) {
-                    // 发起者接受还价
-                    tradeSuccess = executeTrade(trade, player);
-                }
+            if (target != null) {
+                target.sendSystemMessage(Component.literal("交易成功！"));
             }
+        } else if (result == ItemTransfer.Result.INCONSISTENT) {
+            // 校验失败，交易已回滚
+            player.sendSystemMessage(Component.literal("交易失败，物品转移结果与约定不一致"));
             
-            if (tradeSuccess) {
-                // 最终一致性校验
-                if (verifyTradeResult(trade, player)) {
-                    // 原子化更新交易状态
-                    completeTrade(tradeId, trade);
-                    
-                    // 发送成功消息给双方
-                    ServerPlayer initiator = player.serverLevel().getServer().getPlayerList().getPlayer(trade.getInitiatorId());
-                    ServerPlayer target = player.serverLevel().getServer().getPlayerList().getPlayer(trade.getTargetId());
-                    if (initiator != null) {
-                        initiator.sendSystemMessage(Component.literal("交易成功！"));
-                    }
-                    if (target != null) {
-                        target.sendSystemMessage(Component.literal("交易成功！"));
-                    }
-                } else {
-                    // 校验失败，回滚交易
-                    player.sendSystemMessage(Component.literal("交易失败，物品转移结果与约定不一致"));
-                    
-                    // 发送失败消息给另一方
-                    ServerPlayer initiator = player.serverLevel().getServer().getPlayerList().getPlayer(trade.getInitiatorId());
-                    ServerPlayer target = player.serverLevel().getServer().getPlayerList().getPlayer(trade.getTargetId());
-                    if (trade.getInitiatorId().equals(player.getUUID())) {
-                        if (target != null) {
-                            target.sendSystemMessage(Component.literal("交易失败，物品转移结果与约定不一致"));
-                        }
-                    } else {
-                        if (initiator != null) {
-                            initiator.sendSystemMessage(Component.literal("交易失败，物品转移结果与约定不一致"));
-                        }
-                    }
+            // 发送失败消息给另一方
+            ServerPlayer initiator = player.serverLevel().getServer().getPlayerList().getPlayer(trade.getInitiatorId());
+            ServerPlayer target = player.serverLevel().getServer().getPlayerList().getPlayer(trade.getTargetId());
+            if (trade.getInitiatorId().equals(player.getUUID())) {
+                if (target != null) {
+                    target.sendSystemMessage(Component.literal("交易失败，物品转移结果与约定不一致"));
                 }
             } else {
-                player.sendSystemMessage(Component.literal("交易失败，物品栏中没有足够的物品或物品不符合规则"));
-                
-                // 发送失败消息给另一方
-                ServerPlayer initiator = player.serverLevel().getServer().getPlayerList().getPlayer(trade.getInitiatorId());
-                ServerPlayer target = player.serverLevel().getServer().getPlayerList().getPlayer(trade.getTargetId());
-                if (trade.getInitiatorId().equals(player.getUUID())) {
-                    if (target != null) {
-                        target.sendSystemMessage(Component.literal("交易失败，发起者物品栏中没有足够的物品或物品不符合规则"));
-                    }
-                } else {
-                    if (initiator != null) {
-                        initiator.sendSystemMessage(Component.literal("交易失败，目标物品栏中没有足够的物品或物品不符合规则"));
-                    }
+                if (initiator != null) {
+                    initiator.sendSystemMessage(Component.literal("交易失败，物品转移结果与约定不一致"));
                 }
             }
-        } finally {
-            lock.unlock();
-        }
-    }
-    
-    public void denyTrade(ServerPlayer player, UUID tradeId) {
-        ReentrantLock lock = tradeLocks.computeIfAbsent(tradeId, k -> new ReentrantLock());
-        lock.lock();
-        try {
-            Trade trade = pendingTrades.get(tradeId);
-            if (trade == null) {
-                player.sendSystemMessage(Component.literal("交易不存在或已过期"));
-                return;
-            }
-            
-            if (!trade.getTargetId().equals(player.getUUID()) && !trade.getInitiatorId().equals(player.getUUID())) {
-                player.sendSystemMessage(Component.literal("你不是此交易的参与者"));
-                return;
-            }
-            
-            trade.setStatus(Trade.Status.DENIED);
-            pendingTrades.remove(tradeId);
-            player.sendSystemMessage(Component.literal("交易已拒绝"));
-            
-            // 发送拒绝消息给另一方
+        } else {
+            // 发起者的物品已托管，失败只可能出在目标一侧
             ServerPlayer initiator = player.serverLevel().getServer().getPlayerList().getPlayer(trade.getInitiatorId());
             ServerPlayer target = player.serverLevel().getServer().getPlayerList().getPlayer(trade.getTargetId());
             if (trade.getInitiatorId().equals(player.getUUID())) {
-                if (target != null) {
-                    target.sendSystemMessage(Component.literal("交易被拒绝"));
+                if (target == null) {
+                    player.sendSystemMessage(Component.literal("交易失败，对方不在线"));
+                } else {
+                    player.sendSystemMessage(Component.literal("交易失败，对方物品栏中没有足够的物品、空间不足或物品不符合规则"));
+                    target.sendSystemMessage(Component.literal("交易失败，你的物品栏中没有足够的物品、空间不足或物品不符合规则"));
                 }
             } else {
+                player.sendSystemMessage(Component.literal("交易失败，物品栏中没有足够的物品、空间不足或物品不符合规则"));
                 if (initiator != null) {
-                    initiator.sendSystemMessage(Component.literal("交易被拒绝"));
+                    initiator.sendSystemMessage(Component.literal("交易失败，目标物品栏中没有足够的物品或物品不符合规则"));
                 }
             }
-        } finally {
-            lock.unlock();
         }
     }
     
-    public void bargainTrade(ServerPlayer player, UUID tradeId, int newAmount1, int newAmount2) {
-        ReentrantLock lock = tradeLocks.computeIfAbsent(tradeId, k -> new ReentrantLock());
-        lock.lock();
-        try {
-            Trade trade = pendingTrades.get(tradeId);
-            if (trade == null) {
-                player.sendSystemMessage(Component.literal("交易不存在或已过期"));
-                return;
-            }
-            
-            if (!trade.getTargetId().equals(player.getUUID())) {
-                player.sendSystemMessage(Component.literal("只有目标玩家可以讨价还价"));
-                return;
-            }
-            
-            if (trade.isExpired()) {
-                pendingTrades.remove(tradeId);
-                player.sendSystemMessage(Component.literal("交易已过期"));
-                return;
-            }
-            
-            // 校验数量合法性
-            Item requestedItem1 = getItemFromCode(trade.getRequestedItem1());
-            if (requestedItem1 != null) {
-                int maxStackSize1 = requestedItem1.getMaxStackSize();
-                if (newAmount1 <= 0 || newAmount1 > maxStackSize1) {
-                    player.sendSystemMessage(Component.literal("物品1的数量必须在1到" + maxStackSize1 + "之间"));
-                    return;
-                }
-            }
-            
-            if (!trade.getRequestedItem2().equals("0")) {
-                Item requestedItem2 = getItemFromCode(trade.getRequestedItem2());
-                if (requestedItem2 != null) {
-                    int maxStackSize2 = requestedItem2.getMaxStackSize();
-                    if (newAmount2 < 0 || newAmount2 > maxStackSize2) {
-                        player.sendSystemMessage(Component.literal("物品2的数量必须在0到" + maxStackSize2 + "之间"));
-                        return;
-                    }
-                }
+    public void denyTrade(ServerPlayer player, UUID tradeId) {
+        Trade trade = pendingTrades.get(tradeId);
+        if (trade == null) {
+            player.sendSystemMessage(Component.literal("交易不存在或已过期"));
+            return;
+        }
+        
+        if (!trade.getTargetId().equals(player.getUUID()) && !trade.getInitiatorId().equals(player.getUUID())) {
+            player.sendSystemMessage(Component.literal("你不是此交易的参与者"));
+            return;
+        }
+        
+        // 只有等待中或还价中的交易可以拒绝
+        if (!trade.transition(Trade.Status.PENDING, Trade.Status.DENIED)
+                && !trade.transition(Trade.Status.BARGAINING, Trade.Status.DENIED)) {
+            player.sendSystemMessage(Component.literal("交易正在处理中或状态已改变"));
+            return;
+        }
+        removePendingTrade(tradeId);
+        addTradeHistory(trade);
+        Szkauhandler.getInstance().getEscrowStore().refund(player.getServer(), tradeId, "交易被拒绝，退回托管的物品");
+        player.sendSystemMessage(Component.literal("交易已拒绝"));
+        
+        // 发送拒绝消息给另一方
+        ServerPlayer initiator = player.serverLevel().getServer().getPlayerList().getPlayer(trade.getInitiatorId());
+        ServerPlayer target = player.serverLevel().getServer().getPlayerList().getPlayer(trade.getTargetId());
+        if (trade.getInitiatorId().equals(player.getUUID())) {
+            if (target != null) {
+                target.sendSystemMessage(Component.literal("交易被拒绝"));
             }
-            
-            trade.setRequestedAmount1(newAmount1);
-            trade.setRequestedAmount2(newAmount2);
-            trade.setStatus(Trade.Status.BARGAINING);
-            
-            // 发送还价请求给发起者
-            Component message = Component.literal(String.format("[%s]对价格提出了修改请求，你获得的物品分别改为[%d]和[%d]，你是否愿意？用请/szkauhandler %s acce/deny 回复",
-                    player.getName().getString(),
-                    newAmount1,
-                    newAmount2,
-                    player.getName().getString()));
-            
-            ServerPlayer initiator = player.serverLevel().getServer().getPlayerList().getPlayer(trade.getInitiatorId());
+        } else {
             if (initiator != null) {
-                initiator.sendSystemMessage(message);
+                initiator.sendSystemMessage(Component.literal("交易被拒绝"));
             }
-        } finally {
-            lock.unlock();
         }
     }
     
-    private boolean executeTrade(Trade trade) {
-        // 这里需要从上下文获取ServerLevel，暂时使用null，后续需要修改调用方式
-        // 实际上，executeTrade应该从调用它的方法中获取ServerPlayer对象，然后通过player.serverLevel()获取ServerLevel
-        // 或者修改executeTrade方法，让它接受ServerPlayer参数
-        return false;
-    }
-    
-    // 新的executeTrade方法，接受ServerPlayer参数
-    private boolean executeTrade(Trade trade, ServerPlayer player) {
-        ServerLevel level = player.serverLevel();
-        ServerPlayer initiator = level.getServer().getPlayerList().getPlayer(trade.getInitiatorId());
-        ServerPlayer target = level.getServer().getPlayerList().getPlayer(trade.getTargetId());
-        ItemStack offeredItem = trade.getOfferedItem();
-        
-        // 1. 预验证所有物品
-        // 验证发起者提供的物品
-        boolean initiatorInfinite = Szkauhandler.getInstance().getConfigManager().isInfiniteModeEnabled(initiator.getUUID());
-        if (!initiatorInfinite && !hasItem(initiator, offeredItem)) {
-            return false;
+    public void bargainTrade(ServerPlayer player, UUID tradeId, int newAmount1, int newAmount2) {
+        Trade trade = pendingTrades.get(tradeId);
+        if (trade == null) {
+            player.sendSystemMessage(Component.literal("交易不存在或已过期"));
+            return;
         }
         
-        // 验证潜影盒
-        if (!validateShulkerBox(initiator, offeredItem)) {
-            return false;
+        if (!trade.getTargetId().equals(player.getUUID())) {
+            player.sendSystemMessage(Component.literal("只有目标玩家可以讨价还价"));
+            return;
         }
         
-        // 验证物品黑名单
-        if (Szkauhandler.getInstance().getConfigManager().isItemBlocked(
-                offeredItem.getItem().getDescriptionId(), initiator.getUUID())) {
-            return false;
+        if (trade.isExpired()) {
+            expireTrade(player.getServer(), trade);
+            player.sendSystemMessage(Component.literal("交易已过期"));
+            return;
         }
         
-        // 验证目标请求的物品
+        // 校验数量合法性
         Item requestedItem1 = getItemFromCode(trade.getRequestedItem1());
-        if (requestedItem1 == null) {
-            return false;
+        if (requestedItem1 != null) {
+            int maxStackSize1 = requestedItem1.getMaxStackSize();
+            if (newAmount1 <= 0 || newAmount1 > maxStackSize1) {
+                player.sendSystemMessage(Component.literal("物品1的数量必须在1到" + maxStackSize1 + "之间"));
+                return;
+            }
         }
-        ItemStack requestedStack1 = new ItemStack(requestedItem1, trade.getRequestedAmount1());
-        if (!hasItem(target, requestedStack1)) {
-            return false;
+        
+        if (!trade.getRequestedItem2().equals("0")) {
+            Item requestedItem2 = getItemFromCode(trade.getRequestedItem2());
+            if (requestedItem2 != null) {
+                int maxStackSize2 = requestedItem2.getMaxStackSize();
+                if (newAmount2 < 0 || newAmount2 > maxStackSize2) {
+                    player.sendSystemMessage(Component.literal("物品2的数量必须在0到" + maxStackSize2 + "之间"));
+                    return;
+                }
+            }
         }
         
-        if (Szkauhandler.getInstance().getConfigManager().isItemBlocked(
-                requestedItem1.getDescriptionId(), target.getUUID())) {
-            return false;
+        // 修改数量期间占有交易，避免与接受/拒绝交错
+        Trade.Status current = trade.getStatus();
+        if ((current != Trade.Status.PENDING && current != Trade.Status.BARGAINING)
+                || !trade.transition(current, Trade.Status.PROCESSING)) {
+            player.sendSystemMessage(Component.literal("交易正在处理中或状态已改变"));
+            return;
         }
+        trade.setRequestedAmount1(newAmount1);
+        trade.setRequestedAmount2(newAmount2);
+        trade.transition(Trade.Status.PROCESSING, Trade.Status.BARGAINING);
+        
+        // 发送还价请求给发起者
+        Component message = Component.literal(String.format("[%s]对价格提出了修改请求，你获得的物品分别改为[%d]和[%d]，你是否愿意？用请/szkauhandler %s acce/deny 回复",
+                player.getName().getString(),
+                newAmount1,
+                newAmount2,
+                player.getName().getString()));
         
+        ServerPlayer initiator = player.serverLevel().getServer().getPlayerList().getPlayer(trade.getInitiatorId());
+        if (initiator != null) {
+            initiator.sendSystemMessage(message);
+        }
+    }
+    
+    // 发起者的物品已在托管中，只需要目标的物品栏在线；发起者应得的物品在线时直接放入，否则存入邮箱
+    // 目标一侧的校验、移除、放入与核对由 ItemTransfer 完成，与市场购买走同一条路径
+    private ItemTransfer.Result executeTrade(Trade trade, ServerPlayer player) {
+        MinecraftServer server = player.getServer();
+        ServerPlayer target = server.getPlayerList().getPlayer(trade.getTargetId());
+        if (target == null) {
+            return ItemTransfer.Result.INVALID;
+        }
+        EscrowStore escrowStore = Szkauhandler.getInstance().getEscrowStore();
+        ItemStack offeredItem = trade.isEscrowed() ? escrowStore.getHeld(trade.getId()) : trade.getOfferedItem();
+        if (offeredItem == null) {
+            return ItemTransfer.Result.INVALID;
+        }
+        
+        // 目标请求的物品
+        Item requestedItem1 = getItemFromCode(trade.getRequestedItem1());
+        if (requestedItem1 == null) {
+            return ItemTransfer.Result.INVALID;
+        }
+        ItemStack requestedStack1 = new ItemStack(requestedItem1, trade.getRequestedAmount1());
         ItemStack requestedStack2 = ItemStack.EMPTY;
         if (!trade.getRequestedItem2().equals("0")) {
             Item requestedItem2 = getItemFromCode(trade.getRequestedItem2());
             if (requestedItem2 == null) {
-                return false;
+                return ItemTransfer.Result.INVALID;
             }
             requestedStack2 = new ItemStack(requestedItem2, trade.getRequestedAmount2());
-            if (!hasItem(target, requestedStack2)) {
-                return false;
-            }
-            
-            if (Szkauhandler.getInstance().getConfigManager().isItemBlocked(
-                    requestedItem2.getDescriptionId(), target.getUUID())) {
-                return false;
-            }
         }
         
-        // 2. 创建物品快照（原子性保障）
-        Map<Integer, ItemStack> initiatorSnapshot = snapshotInventory(initiator);
-        Map<Integer, ItemStack> targetSnapshot = snapshotInventory(target);
-        
-        try {
-            // 3. 执行物品转移
-            // 移除发起者的物品（无限模式下不移除）
-            if (!initiatorInfinite) {
-                ItemStack removedOffered = removeItemWithNBT(initiator, offeredItem);
-                if (removedOffered.isEmpty()) {
-                    throw new Exception("无法移除发起者物品");
-                }
-            }
-            
-            // 移除目标的物品
-            ItemStack removedRequested1 = removeItemWithNBT(target, requestedStack1);
-            if (removedRequested1.isEmpty()) {
-                throw new Exception("无法移除目标物品1");
-            }
-            
-            if (!requestedStack2.isEmpty()) {
-                ItemStack removedRequested2 = removeItemWithNBT(target, requestedStack2);
-                if (removedRequested2.isEmpty()) {
-                    throw new Exception("无法移除目标物品2");
-                }
-            }
-            
-            // 添加物品到目标
-            addItemWithCheck(target, copyItemWithFullNBT(offeredItem));
-            
-            // 添加物品到发起者
-            addItemWithCheck(initiator, copyItemWithFullNBT(requestedStack1));
-            if (!requestedStack2.isEmpty()) {
-                addItemWithCheck(initiator, copyItemWithFullNBT(requestedStack2));
-            }
-            
-            // 4. 验证转移结果
-            return true;
-        } catch (Throwable t) {
-            // 5. 回滚：恢复到快照状态
-            try {
-                restoreInventory(initiator, initiatorSnapshot);
-                restoreInventory(target, targetSnapshot);
-            } catch (Throwable rollbackError) {
-                // 回滚失败，记录错误
-                LOGGER.error("交易回滚失败: {}", rollbackError.getMessage());
-            }
-            return false;
+        ItemTransfer.Result result = ItemTransfer.exchange(target, copyItemWithFullNBT(offeredItem), requestedStack1, requestedStack2);
+        if (result != ItemTransfer.Result.SUCCESS) {
+            return result;
         }
+        
+        // 目标一侧已完成，解除托管并把请求的物品交给发起者
+        escrowStore.release(trade.getId());
+        escrowStore.deliver(server, trade.getInitiatorId(), requestedStack1, "交易成功");
+        escrowStore.deliver(server, trade.getInitiatorId(), requestedStack2, "交易成功");
+        return ItemTransfer.Result.SUCCESS;
     }
     
-    private boolean hasItem(ServerPlayer player, ItemStack targetStack) {
-        int required = targetStack.getCount();
-        int count = 0;
-        for (int i = 0; i < player.getInventory().getContainerSize(); i++) {
-            ItemStack stack = player.getInventory().getItem(i);
-            if (ItemStack.isSameItemSameTags(stack, targetStack)) {
-                count += stack.getCount();
-                if (count >= required) {
-                    return true;
-                }
-            }
-        }
-        return false;
+    private Item getItemFromCode(String code) {
+        return Szkauhandler.getInstance().getConfigManager().getCurrencyItem(code);
     }
     
-    private boolean hasItem(ServerPlayer player, Item item, int amount) {
-        return hasItem(player, new ItemStack(item, amount));
+    private String getItemNameFromCode(String code) {
+        if (code.equals("0")) {
+            return "";
+        }
+        Item item = getItemFromCode(code);
+        return item != null ? item.getDescription().getString() : code;
     }
     
-    private ItemStack removeItemWithNBT(ServerPlayer player, ItemStack targetStack) {
-        int remaining = targetStack.getCount();
-        ItemStack removed = ItemStack.EMPTY;
-        
-        for (int i = 0; i < player.getInventory().getContainerSize() && remaining > 0; i++) {
-            ItemStack stack = player.getInventory().getItem(i);
-            if (ItemStack.isSameItemSameTags(stack, targetStack)) {
-                int take = Math.min(stack.getCount(), remaining);
-                ItemStack toRemove = stack.split(take);
-                remaining -= take;
-                
-                if (removed.isEmpty()) {
-                    removed = toRemove;
-                } else {
-                    removed.grow(take);
-                }
-            }
+    private ItemStack copyItemWithFullNBT(ItemStack original) {
+        ItemStack copy = original.copy();
+        if (original.hasTag()) {
+            copy.setTag(original.getTag().copy());
         }
-        
-        return removed;
+        return copy;
     }
     
-    private void removeItem(ServerPlayer player, Item item, int amount) {
-        removeItemWithNBT(player, new ItemStack(item, amount));
+    // 调用方已通过 PROCESSING 状态独占该交易
+    private void completeTrade(UUID tradeId, Trade trade) {
+        trade.transition(Trade.Status.PROCESSING, Trade.Status.COMPLETED);
+        removePendingTrade(tradeId);
+        addTradeHistory(trade);
     }
     
-    private void addItemWithCheck(ServerPlayer player, ItemStack itemStack) throws Exception {
-        ItemStack copy = itemStack.copy();
-        boolean success = player.getInventory().add(copy);
-        if (!success || !copy.isEmpty()) {
-            throw new Exception("物品栏空间不足");
-        }
+    // 记录一笔市场成交：物品已通过托管交付，交易不进入等待列表，只写入历史
+    void recordMarketTrade(UUID sellerId, UUID buyerId, ItemStack item, String currency, int price, String note) {
+        Trade trade = new Trade(UUID.randomUUID(), sellerId, buyerId, item, currency, price, "0", 0, note);
+        trade.transition(Trade.Status.PENDING, Trade.Status.COMPLETED);
+        addTradeHistory(trade);
     }
     
-    private void addItem(ServerPlayer player, Item item, int amount) {
-        try {
-            addItemWithCheck(player, new ItemStack(item, amount));
-        } catch (Exception e) {
-            // 记录物品添加失败的日志
-            LOGGER.warn("物品添加失败: {}，数量: {}", item.getDescriptionId(), amount);
+    // 将等待中或还价中的交易标记为过期；正在处理的交易不受影响，返回false
+    private boolean expireTrade(MinecraftServer server, Trade trade) {
+        if (!trade.transition(Trade.Status.PENDING, Trade.Status.EXPIRED)
+                && !trade.transition(Trade.Status.BARGAINING, Trade.Status.EXPIRED)) {
+            return false;
         }
+        removePendingTrade(trade.getId());
+        addTradeHistory(trade);
+        Szkauhandler.getInstance().getEscrowStore().refund(server, trade.getId(), "交易已过期，退回托管的物品");
+        return true;
     }
     
-    private void addItem(ServerPlayer player, ItemStack itemStack) {
-        try {
-            addItemWithCheck(player, itemStack);
-        } catch (Exception e) {
-            // 记录物品添加失败的日志
-            LOGGER.warn("物品添加失败: {}，数量: {}", itemStack.getItem().getDescriptionId(), itemStack.getCount());
+    // 只记录已结束的交易，每笔交易在日志中只有一条记录
+    private void addTradeHistory(Trade trade) {
+        Trade.Status status = trade.getStatus();
+        if (status != Trade.Status.COMPLETED && status != Trade.Status.DENIED && status != Trade.Status.EXPIRED) {
+            return;
+        }
+        // 双方共享同一条记录
+        TradeHistory history = new TradeHistory(historyStore.dictionary(), trade);
+        // 写入分段日志，并保留在双方的最近记录中以便查询；回放尚未完成时先暂存
+        if (historyLoaded) {
+            storeHistory(history);
+        } else {
+            bufferedHistories.add(history);
         }
+        // 交给后台线程记录到日志文件
+        logWriter.append(history);
     }
     
-    private Item getItemFromCode(String code) {
-        String itemId = Szkauhandler.getInstance().getConfigManager().getCurrencyItemId(code);
-        ResourceLocation rl = ResourceLocation.tryParse(itemId);
-        if (rl == null) {
-            return null;
-        }
-        return BuiltInRegistries.ITEM.get(rl);
+    private void storeHistory(TradeHistory history) {
+        long position = historyStore.append(history);
+        priceIndex.record(history, position);
     }
     
-    private String getItemNameFromCode(String code) {
-        if (code.equals("0")) {
-            return "";
-        }
-        Item item = getItemFromCode(code);
-        return item != null ? item.getDescription().getString() : code;
+    // 服务器关闭时调用，写完尚未落盘的日志
+    public void close() {
+        ensureHistoryLoaded();
+        logWriter.close();
+        historyStore.close();
+        // 同一进程内再次开服（单人游戏/局域网）时重新回放
+        historyLoad = null;
+        historyLoaded = false;
+        historyReady = new CompletableFuture<>();
+        priceIndex.clear();
     }
     
-    private boolean validateShulkerBox(ServerPlayer player, ItemStack shulkerBox) {
-        if (!shulkerBox.getItem().toString().contains("shulker_box")) {
-            return true;
-        }
-        
-        CompoundTag tag = shulkerBox.getTagElement("BlockEntityTag");
-        if (tag == null) {
-            return true;
-        }
-        
-        ListTag items = tag.getList("Items", Tag.TAG_COMPOUND);
-        for (Tag itemTag : items) {
-            ItemStack innerStack = ItemStack.of((CompoundTag) itemTag);
-            if (Szkauhandler.getInstance().getConfigManager().isItemBlocked(
-                    innerStack.getItem().getDescriptionId(), player.getUUID())) {
-                return false;
-            }
-            if (innerStack.getCount() <= 0) {
-                return false;
-            }
-        }
-        
-        return true;
+    // 登录时在查询线程上预读最近记录，历史回放完成前先等待
+    @SubscribeEvent
+    public void onPlayerLoggedIn(PlayerEvent.PlayerLoggedInEvent event) {
+        UUID playerId = event.getEntity().getUUID();
+        historyStore.markOnline(playerId);
+        SkhExecutors.queries().execute(() -> {
+            awaitHistory();
+            historyStore.warm(playerId);
+        });
     }
     
-    private Map<Integer, ItemStack> snapshotInventory(ServerPlayer player) {
-        Map<Integer, ItemStack> snapshot = new HashMap<>();
-        for (int i = 0; i < player.getInventory().getContainerSize(); i++) {
-            snapshot.put(i, player.getInventory().getItem(i).copy());
-        }
-        return snapshot;
+    // 最近记录在下线一段时间后才淘汰，短时间内重新登录不需要再读盘
+    @SubscribeEvent
+    public void onPlayerLoggedOut(PlayerEvent.PlayerLoggedOutEvent event) {
+        historyStore.markOffline(event.getEntity().getUUID());
     }
     
-    private void restoreInventory(ServerPlayer player, Map<Integer, ItemStack> snapshot) {
-        player.getInventory().clearContent();
-        for (Map.Entry<Integer, ItemStack> entry : snapshot.entrySet()) {
-            player.getInventory().setItem(entry.getKey(), entry.getValue().copy());
-        }
+    public PriceIndex getPriceIndex() {
+        return priceIndex;
     }
     
-    private ItemStack copyItemWithFullNBT(ItemStack original) {
-        ItemStack copy = original.copy();
-        if (original.hasTag()) {
-            copy.setTag(original.getTag().copy());
-        }
-        return copy;
+    // 全部历史的列式快照，可在任意线程上扫描
+    public HistoryColumns.View snapshotHistoryColumns() {
+        awaitHistory();
+        return historyStore.snapshotColumns();
     }
     
-    private boolean verifyTradeResult(Trade trade, ServerPlayer player) {
-        ServerLevel level = player.serverLevel();
-        ServerPlayer initiator = level.getServer().getPlayerList().getPlayer(trade.getInitiatorId());
-        ServerPlayer target = level.getServer().getPlayerList().getPlayer(trade.getTargetId());
-        ItemStack offeredItem = trade.getOfferedItem();
-        
-        // 验证目标是否收到发起者提供的物品
-        boolean targetHasOfferedItem = false;
-        for (int i = 0; i < target.getInventory().getContainerSize(); i++) {
-            ItemStack stack = target.getInventory().getItem(i);
-            if (ItemStack.isSameItemSameTags(stack, offeredItem)) {
-                targetHasOfferedItem = true;
-                break;
-            }
-        }
-        if (!targetHasOfferedItem) {
-            return false;
-        }
-        
-        // 验证发起者是否收到目标提供的物品
-        Item requestedItem1 = getItemFromCode(trade.getRequestedItem1());
-        if (requestedItem1 == null) {
-            return false;
-        }
-        ItemStack requestedStack1 = new ItemStack(requestedItem1, trade.getRequestedAmount1());
-        boolean initiatorHasRequestedItem1 = false;
-        for (int i = 0; i < initiator.getInventory().getContainerSize(); i++) {
-            ItemStack stack = initiator.getInventory().getItem(i);
-            if (ItemStack.isSameItemSameTags(stack, requestedStack1)) {
-                initiatorHasRequestedItem1 = true;
-                break;
-            }
-        }
-        if (!initiatorHasRequestedItem1) {
-            return false;
-        }
-        
-        if (!trade.getRequestedItem2().equals("0")) {
-            Item requestedItem2 = getItemFromCode(trade.getRequestedItem2());
-            if (requestedItem2 == null) {
-                return false;
-            }
-            ItemStack requestedStack2 = new ItemStack(requestedItem2, trade.getRequestedAmount2());
-            boolean initiatorHasRequestedItem2 = false;
-            for (int i = 0; i < initiator.getInventory().getContainerSize(); i++) {
-                ItemStack stack = initiator.getInventory().getItem(i);
-                if (ItemStack.isSameItemSameTags(stack, requestedStack2)) {
-                    initiatorHasRequestedItem2 = true;
-                    break;
-                }
-            }
-            if (!initiatorHasRequestedItem2) {
-                return false;
-            }
-        }
-        
-        return true;
+    // 按条件在全服历史的索引上按时间倒序分页查询，每页只读取本页的记录
+    public HistoryStore.HistoryPage queryTradeHistory(TradeFilter filter, int page, int pageSize) {
+        awaitHistory();
+        return historyStore.query(filter, page, pageSize);
     }
     
-    private void completeTrade(UUID tradeId, Trade trade) {
-        synchronized (pendingTrades) {
-            trade.setStatus(Trade.Status.COMPLETED);
-            pendingTrades.remove(tradeId);
-        }
+    public boolean isHistoryReady() {
+        return historyLoaded;
+    }
+    
+    // 在查询线程上等待历史回放完成，不要在服务器线程上调用
+    public void awaitHistory() {
+        CompletableFuture<Void> ready = historyReady;
+        if (historyLoad == null) {
+            // 服务器尚未启动或已经关闭，回放不会开始，不能一直等下去
+            throw new IllegalStateException("交易历史尚未开始加载");
+        }
+        ready.join();
     }
     
-    private void addTradeHistory(UUID playerId, Trade trade) {
-        TradeHistory history = new TradeHistory(trade);
-        // 添加到内存中以便查询
-        tradeHistories.computeIfAbsent(playerId, k -> new ArrayList<>()).add(history);
-        // 记录到日志文件
-        logTradeHistory(history);
+    // 拒绝的交易与其他记录一样只写入交易日志；这里只保存价格草图，写入在后台IO线程上进行
+    public void saveData() {
+        // 回放完成前的草图还不完整，不覆盖磁盘上的版本
+        byte[] sketches = historyLoaded ? priceIndex.snapshotSketches() : null;
+        if (sketches != null) {
+            SkhExecutors.io().execute(() -> writePriceSketches(sketches));
+        }
     }
     
-    private void logTradeHistory(TradeHistory history) {
+    private void writePriceSketches(byte[] sketches) {
         try {
             Path dataDir = FMLPaths.CONFIGDIR.get().resolve("szkauhandler");
             Files.createDirectories(dataDir);
-            
-            // 记录到日志文件
-            Path logFile = dataDir.resolve("trade_log.txt");
-            try (BufferedWriter writer = Files.newBufferedWriter(logFile, StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
-                String logEntry = String.format("[%s] 交易ID: %s, 发起者: %s, 目标: %s, 状态: %s, 提供: %s x%d, 请求: %s x%d %s, 备注: %s%n",
-                        new Date(history.getTimestamp()).toString(),
-                        history.getTradeId(),
-                        history.getInitiatorId(),
-                        history.getTargetId(),
-                        history.getStatus().name(),
-                        history.getOfferedItem(),
-                        history.getOfferedAmount(),
-                        history.getRequestedItem1(),
-                        history.getRequestedAmount1(),
-                        history.getRequestedItem2().equals("0") ? "" : String.format("和 %s x%d", history.getRequestedItem2(), history.getRequestedAmount2()),
-                        history.getNote() != null ? history.getNote() : "无");
-                writer.write(logEntry);
-            }
+            Path tempFile = dataDir.resolve("price_sketches.bin.tmp");
+            Files.write(tempFile, sketches);
+            Files.move(tempFile, dataDir.resolve("price_sketches.bin"), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
         } catch (IOException e) {
-            LOGGER.error("记录交易日志失败: {}", e.getMessage());
+            LOGGER.error("保存价格草图失败: {}", e.getMessage());
         }
     }
     
-    public List<TradeHistory> getTradeHistories(UUID playerId) {
-        return tradeHistories.getOrDefault(playerId, Collections.emptyList());
+    // 在后台线程上回放交易历史，不阻塞服务器启动；完成后由 onServerTick 补写回放期间的记录
+    public void loadData() {
+        if (historyLoad != null) {
+            return;
+        }
+        historyLoad = CompletableFuture.runAsync(this::loadHistory,
+                runnable -> SkhExecutors.daemonFactory("szkauhandler-history-load").newThread(runnable).start());
     }
     
-    public void saveData() {
+    // 服务器线程上调用：回放完成后补写暂存的记录并放行等待中的查询
+    private void finishLoading() {
         try {
-            Path dataDir = FMLPaths.CONFIGDIR.get().resolve("szkauhandler");
-            Files.createDirectories(dataDir);
-            
-            // 只保存异常交易到JSON（例如拒绝的交易）
-            Map<UUID, List<TradeHistory>> exceptionalTrades = new HashMap<>();
-            for (Map.Entry<UUID, List<TradeHistory>> entry : tradeHistories.entrySet()) {
-                List<TradeHistory> exceptional = entry.getValue().stream()
-                        .filter(history -> history.getStatus() == Trade.Status.DENIED)
-                        .collect(Collectors.toList());
-                if (!exceptional.isEmpty()) {
-                    exceptionalTrades.put(entry.getKey(), exceptional);
-                }
-            }
-            
-            // 保存异常交易
-            Path exceptionFile = dataDir.resolve("exceptional_trades.json");
-            Gson gson = new GsonBuilder().setPrettyPrinting().create();
-            try (Writer writer = Files.newBufferedWriter(exceptionFile)) {
-                gson.toJson(exceptionalTrades, writer);
-            }
-        } catch (IOException e) {
-            LOGGER.error("保存数据失败: {}", e.getMessage());
+            historyLoad.join();
+        } catch (CompletionException e) {
+            LOGGER.error("加载交易历史失败: {}", e.getCause() != null ? e.getCause().getMessage() : e.getMessage());
+        }
+        for (TradeHistory history : bufferedHistories) {
+            storeHistory(history);
+        }
+        if (!bufferedHistories.isEmpty()) {
+            LOGGER.info("已补写加载期间产生的 {} 条交易记录", bufferedHistories.size());
         }
+        bufferedHistories.clear();
+        historyLoaded = true;
+        historyReady.complete(null);
     }
     
-    public void loadData() {
+    // 服务器关闭前调用，等待回放结束，确保暂存的记录写入日志
+    public void ensureHistoryLoaded() {
+        // 回放没有开始时也不会有暂存的记录
+        if (historyLoaded || historyLoad == null) {
+            return;
+        }
+        finishLoading();
+    }
+    
+    private void loadHistory() {
+        // 优先从二进制日志回放完整历史
+        if (historyStore.exists()) {
+            priceIndex.loadSketches(FMLPaths.CONFIGDIR.get().resolve("szkauhandler").resolve("price_sketches.bin"));
+            int count = historyStore.load(priceIndex::record);
+            LOGGER.info("已从交易日志恢复 {} 条交易记录", count);
+            return;
+        }
+        
+        // 旧版本只保存了异常交易，导入后写入二进制日志
         try {
             Path dataDir = FMLPaths.CONFIGDIR.get().resolve("szkauhandler");
             Path exceptionFile = dataDir.resolve("exceptional_trades.json");
             
             if (Files.exists(exceptionFile)) {
-                Gson gson = new Gson();
+                Gson gson = new GsonBuilder()
+                        .registerTypeAdapter(TradeHistory.class, new TradeHistory.JsonAdapter(historyStore.dictionary()))
+                        .create();
                 try (Reader reader = Files.newBufferedReader(exceptionFile)) {
                     Type type = new TypeToken<Map<UUID, List<TradeHistory>>>(){}.getType();
                     Map<UUID, List<TradeHistory>> loadedExceptions = gson.fromJson(reader, type);
                     if (loadedExceptions != null) {
-                        tradeHistories.putAll(loadedExceptions);
+                        Set<UUID> imported = new HashSet<>();
+                        List<TradeHistory> records = new ArrayList<>();
+                        for (List<TradeHistory> histories : loadedExceptions.values()) {
+                            for (TradeHistory history : histories) {
+                                // 同一笔交易在双方名下各有一份
+                                if (imported.add(history.getTradeId())) {
+                                    records.add(history);
+                                }
+                            }
+                        }
+                        // 按时间范围查询依赖日志中的时间戳有序，按玩家分组的旧数据需要先排序
+                        records.sort(Comparator.comparingLong(TradeHistory::getTimestamp));
+                        for (TradeHistory history : records) {
+                            historyStore.append(history);
+                        }
                     }
                 }
             }
@@ -647,60 +563,191 @@ public class TradeManager {
         }
     }
     
+    // 按创建时间排序的快照；遍历期间被移除的交易会被跳过
     public List<Trade> getPendingTrades(UUID playerId) {
-        List<Trade> trades = new ArrayList<>();
-        for (Trade trade : pendingTrades.values()) {
-            if (trade.getInitiatorId().equals(playerId) || trade.getTargetId().equals(playerId)) {
+        Set<UUID> tradeIds = playerTradeIndex.get(playerId);
+        if (tradeIds == null) {
+            return Collections.emptyList();
+        }
+        List<Trade> trades = new ArrayList<>(tradeIds.size());
+        for (UUID tradeId : tradeIds) {
+            Trade trade = pendingTrades.get(tradeId);
+            if (trade != null) {
                 trades.add(trade);
             }
         }
+        trades.sort(Comparator.comparingLong(Trade::getCreationTime));
         return trades;
     }
     
+    // 按条件查询待处理交易，按创建时间排序
+    // 与历史查询一样在索引上求交集：从参与者、物品索引中较小的一个出发，其余条件逐个检查；
+    // 两者都没有指定时从创建时间索引中取时间范围内的子表，结果已经有序
+    public List<Trade> findPendingTrades(TradeFilter filter) {
+        Set<UUID> driver = null;
+        if (filter.getParticipant() != null) {
+            driver = playerTradeIndex.getOrDefault(filter.getParticipant(), Collections.emptySet());
+        }
+        if (filter.getItem() != null) {
+            Set<UUID> byItem = itemTradeIndex.getOrDefault(filter.getItem(), Collections.emptySet());
+            if (driver == null || byItem.size() < driver.size()) {
+                driver = byItem;
+            }
+        }
+        List<Trade> trades = new ArrayList<>();
+        if (driver == null) {
+            for (Set<UUID> tradeIds : creationTradeIndex.subMap(filter.getSince(), true, filter.getUntil(), true).values()) {
+                collectMatches(tradeIds, filter, trades);
+            }
+            return trades;
+        }
+        collectMatches(driver, filter, trades);
+        trades.sort(Comparator.comparingLong(Trade::getCreationTime));
+        return trades;
+    }
+    
+    // 遍历期间被移除的交易会被跳过
+    private void collectMatches(Set<UUID> tradeIds, TradeFilter filter, List<Trade> trades) {
+        for (UUID tradeId : tradeIds) {
+            Trade trade = pendingTrades.get(tradeId);
+            if (trade != null && filter.matches(trade)) {
+                trades.add(trade);
+            }
+        }
+    }
+    
+    // 查找两名玩家之间最新的待处理交易（不区分发起方向）
+    public Trade findLatestPendingTrade(UUID playerId, UUID otherId) {
+        Trade incoming = latestPairTrade(otherId, playerId);
+        Trade outgoing = latestPairTrade(playerId, otherId);
+        if (incoming == null) {
+            return outgoing;
+        }
+        if (outgoing == null) {
+            return incoming;
+        }
+        return incoming.getCreationTime() >= outgoing.getCreationTime() ? incoming : outgoing;
+    }
+    
+    private Trade latestPairTrade(UUID initiatorId, UUID targetId) {
+        Map<UUID, Deque<Trade>> byTarget = pairTradeIndex.get(initiatorId);
+        if (byTarget == null) {
+            return null;
+        }
+        Deque<Trade> trades = byTarget.get(targetId);
+        return trades != null ? trades.peekLast() : null;
+    }
+    
+    private void indexTrade(Trade trade) {
+        playerTradeIndex.computeIfAbsent(trade.getInitiatorId(), k -> ConcurrentHashMap.newKeySet()).add(trade.getId());
+        playerTradeIndex.computeIfAbsent(trade.getTargetId(), k -> ConcurrentHashMap.newKeySet()).add(trade.getId());
+        pairTradeIndex.computeIfAbsent(trade.getInitiatorId(), k -> new ConcurrentHashMap<>())
+                .computeIfAbsent(trade.getTargetId(), k -> new ConcurrentLinkedDeque<>())
+                .addLast(trade);
+        for (String item : itemKeys(trade)) {
+            itemTradeIndex.computeIfAbsent(item, k -> ConcurrentHashMap.newKeySet()).add(trade.getId());
+        }
+        creationTradeIndex.computeIfAbsent(trade.getCreationTime(), k -> ConcurrentHashMap.newKeySet()).add(trade.getId());
+    }
+    
+    // 与 TradeFilter.matches 使用相同的物品键；"0" 表示没有第二种请求物品
+    private static Set<String> itemKeys(Trade trade) {
+        Set<String> items = new HashSet<>(4);
+        items.add(TradeFilter.itemKey(trade.getOfferedItem()));
+        items.add(TradeFilter.itemKey(trade.getRequestedItem1()));
+        if (!trade.getRequestedItem2().equals("0")) {
+            items.add(TradeFilter.itemKey(trade.getRequestedItem2()));
+        }
+        return items;
+    }
+    
+    private void unindexTrade(Trade trade) {
+        removeFromIndex(playerTradeIndex, trade.getInitiatorId(), trade.getId());
+        removeFromIndex(playerTradeIndex, trade.getTargetId(), trade.getId());
+        for (String item : itemKeys(trade)) {
+            removeFromIndex(itemTradeIndex, item, trade.getId());
+        }
+        removeFromIndex(creationTradeIndex, trade.getCreationTime(), trade.getId());
+        Map<UUID, Deque<Trade>> byTarget = pairTradeIndex.get(trade.getInitiatorId());
+        if (byTarget != null) {
+            Deque<Trade> trades = byTarget.get(trade.getTargetId());
+            if (trades != null) {
+                // 同一对玩家之间的交易很少，线性移除即可
+                trades.remove(trade);
+                if (trades.isEmpty()) {
+                    byTarget.remove(trade.getTargetId());
+                }
+            }
+            if (byTarget.isEmpty()) {
+                pairTradeIndex.remove(trade.getInitiatorId());
+            }
+        }
+    }
+    
+    private static <K> void removeFromIndex(Map<K, Set<UUID>> index, K key, UUID tradeId) {
+        Set<UUID> tradeIds = index.get(key);
+        if (tradeIds != null) {
+            tradeIds.remove(tradeId);
+            if (tradeIds.isEmpty()) {
+                index.remove(key);
+            }
+        }
+    }
+    
+    // 移除待处理交易并同步维护索引
+    private Trade removePendingTrade(UUID tradeId) {
+        Trade trade = pendingTrades.remove(tradeId);
+        if (trade != null) {
+            unindexTrade(trade);
+        }
+        return trade;
+    }
+    
     @SubscribeEvent
     public void onServerTick(TickEvent.ServerTickEvent event) {
         if (event.phase != TickEvent.Phase.END) {
             return;
         }
         
+        if (!historyLoaded && historyLoad != null && historyLoad.isDone()) {
+            finishLoading();
+        }
+        
         long currentTime = System.currentTimeMillis();
         
-        // 每30秒检查一次
-        if (currentTime - lastCleanupTime >= 30000) {
-            // 清理过期交易
-            Iterator<Map.Entry<UUID, Trade>> tradeIterator = pendingTrades.entrySet().iterator();
-            while (tradeIterator.hasNext()) {
-                Map.Entry<UUID, Trade> entry = tradeIterator.next();
-                Trade trade = entry.getValue();
-                if (trade.isExpired()) {
-                    tradeIterator.remove();
-                    // 同时移除对应的锁对象
-                    tradeLocks.remove(entry.getKey());
-                    
-                    // 提示交易双方交易已过期
-                    net.minecraft.server.MinecraftServer server = event.getServer();
-                    net.minecraft.server.level.ServerLevel level = server.overworld();
-                    ServerPlayer initiator = level.getServer().getPlayerList().getPlayer(trade.getInitiatorId());
-                    ServerPlayer target = level.getServer().getPlayerList().getPlayer(trade.getTargetId());
-                    if (initiator != null) {
-                        initiator.sendSystemMessage(Component.literal("交易已过期"));
-                    }
-                    if (target != null) {
-                        target.sendSystemMessage(Component.literal("交易已过期"));
+        // 只处理截止时间已到的交易
+        Trade head;
+        List<Trade> busy = null;
+        while ((head = expiryQueue.peek()) != null && head.getExpiryTime() <= currentTime) {
+            expiryQueue.poll();
+            if (pendingTrades.get(head.getId()) != head) {
+                // 已完成或已拒绝
+                continue;
+            }
+            if (!expireTrade(event.getServer(), head)) {
+                // 正在处理中，下一tick再检查
+                if (head.getStatus() == Trade.Status.PROCESSING) {
+                    if (busy == null) {
+                        busy = new ArrayList<>();
                     }
+                    busy.add(head);
                 }
+                continue;
             }
             
-            // 清理无用的锁对象
-            Iterator<UUID> lockIterator = tradeLocks.keySet().iterator();
-            while (lockIterator.hasNext()) {
-                UUID tradeId = lockIterator.next();
-                if (!pendingTrades.containsKey(tradeId)) {
-                    lockIterator.remove();
-                }
+            // 提示交易双方交易已过期
+            MinecraftServer server = event.getServer();
+            ServerPlayer initiator = server.getPlayerList().getPlayer(head.getInitiatorId());
+            ServerPlayer target = server.getPlayerList().getPlayer(head.getTargetId());
+            if (initiator != null) {
+                initiator.sendSystemMessage(Component.literal("交易已过期"));
+            }
+            if (target != null) {
+                target.sendSystemMessage(Component.literal("交易已过期"));
             }
-            
-            lastCleanupTime = currentTime;
+        }
+        if (busy != null) {
+            expiryQueue.addAll(busy);
         }
         
         // 每60秒保存一次数据
@@ -711,30 +758,40 @@ public class TradeManager {
     }
     
     public static class Trade {
+        public static final long EXPIRY_MILLIS = 5 * 60 * 1000; // 5分钟过期
+        
         private final UUID id;
         private final UUID initiatorId;
         private final UUID targetId;
         private final ItemStack offeredItem;
         private final String requestedItem1;
         private final String requestedItem2;
-        private int requestedAmount1;
-        private int requestedAmount2;
+        private volatile int requestedAmount1;
+        private volatile int requestedAmount2;
         private final String note;
         private final long creationTime;
-        private Status status;
+        // 状态只通过 CAS 迁移：PENDING -> BARGAINING/PROCESSING -> COMPLETED/DENIED/EXPIRED
+        private final AtomicReference<Status> status = new AtomicReference<>(Status.PENDING);
+        // 提供的物品是否已从发起者处取走并托管（无限模式下不托管）
+        private boolean escrowed;
         
         public Trade(UUID id, ServerPlayer initiator, ServerPlayer target, ItemStack offeredItem, String requestedItem1, int amount1, String requestedItem2, int amount2, String note) {
+            this(id, initiator.getUUID(), target.getUUID(), offeredItem, requestedItem1, amount1, requestedItem2, amount2, note);
+        }
+        
+        // 参与者可能不在线的交易（市场成交）
+        Trade(UUID id, UUID initiatorId, UUID targetId, ItemStack offeredItem, String requestedItem1, int amount1, String requestedItem2, int amount2, String note) {
             this.id = id;
-            this.initiatorId = initiator.getUUID();
-            this.targetId = target.getUUID();
-            this.offeredItem = offeredItem;
+            this.initiatorId = initiatorId;
+            this.targetId = targetId;
+            // 保存副本，避免副手物品被移动或消耗后交易内容随之改变
+            this.offeredItem = offeredItem.copy();
             this.requestedItem1 = requestedItem1;
             this.requestedItem2 = requestedItem2;
             this.requestedAmount1 = amount1;
             this.requestedAmount2 = amount2;
             this.note = note;
             this.creationTime = System.currentTimeMillis();
-            this.status = Status.PENDING;
         }
         
         public UUID getId() {
@@ -790,15 +847,29 @@ public class TradeManager {
         }
         
         public Status getStatus() {
-            return status;
+            return status.get();
+        }
+        
+        // 仅当当前状态为from时迁移到to
+        public boolean transition(Status from, Status to) {
+            return status.compareAndSet(from, to);
+        }
+        
+        public boolean isEscrowed() {
+            return escrowed;
         }
         
-        public void setStatus(Status status) {
-            this.status = status;
+        // 只在交易加入待处理列表之前设置
+        void setEscrowed(boolean escrowed) {
+            this.escrowed = escrowed;
         }
         
         public boolean isExpired() {
-            return System.currentTimeMillis() - creationTime > 5 * 60 * 1000; // 5分钟过期
+            return System.currentTimeMillis() >= getExpiryTime();
+        }
+        
+        public long getExpiryTime() {
+            return creationTime + EXPIRY_MILLIS;
         }
         
         public long getCreationTime() {
@@ -806,54 +877,74 @@ public class TradeManager {
         }
         
         public enum Status {
-            PENDING, BARGAINING, COMPLETED, DENIED
+            // PROCESSING 是接受/还价期间的临时状态，不会写入历史；追加在末尾以保持日志中的序号不变
+            PENDING, BARGAINING, COMPLETED, DENIED, EXPIRED, PROCESSING
         }
     }
     
+    // 紧凑的历史记录：玩家和物品保存为字典下标，交易ID保存为两个long，双方的历史共享同一条记录
+    // 提供的物品保存注册表ID；旧版本记录中的显示名原样保留
     public static class TradeHistory {
-        private final UUID tradeId;
-        private final UUID initiatorId;
-        private final UUID targetId;
-        private final String offeredItem;
+        private static final Trade.Status[] STATUSES = Trade.Status.values();
+        
+        private final HistoryDictionary dictionary;
+        private final long tradeIdMost;
+        private final long tradeIdLeast;
+        private final int initiator;
+        private final int target;
+        private final int offeredItem;
         private final int offeredAmount;
-        private final String requestedItem1;
+        private final int requestedItem1;
         private final int requestedAmount1;
-        private final String requestedItem2;
+        private final int requestedItem2;
         private final int requestedAmount2;
         private final String note;
         private final long timestamp;
-        private final Trade.Status status;
-        
-        public TradeHistory(Trade trade) {
-            this.tradeId = trade.getId();
-            this.initiatorId = trade.getInitiatorId();
-            this.targetId = trade.getTargetId();
-            this.offeredItem = trade.getOfferedItem().getDisplayName().getString();
-            this.offeredAmount = trade.getOfferedItem().getCount();
-            this.requestedItem1 = trade.getRequestedItem1();
-            this.requestedAmount1 = trade.getRequestedAmount1();
-            this.requestedItem2 = trade.getRequestedItem2();
-            this.requestedAmount2 = trade.getRequestedAmount2();
-            this.note = trade.getNote();
-            this.timestamp = System.currentTimeMillis();
-            this.status = trade.getStatus();
+        private final byte status;
+        
+        public TradeHistory(HistoryDictionary dictionary, Trade trade) {
+            this(dictionary, trade.getId(), trade.getInitiatorId(), trade.getTargetId(),
+                    BuiltInRegistries.ITEM.getKey(trade.getOfferedItem().getItem()).toString(),
+                    trade.getOfferedItem().getCount(),
+                    trade.getRequestedItem1(), trade.getRequestedAmount1(),
+                    trade.getRequestedItem2(), trade.getRequestedAmount2(),
+                    trade.getNote(), System.currentTimeMillis(), trade.getStatus());
+        }
+        
+        TradeHistory(HistoryDictionary dictionary, UUID tradeId, UUID initiatorId, UUID targetId, String offeredItem, int offeredAmount,
+                     String requestedItem1, int requestedAmount1, String requestedItem2, int requestedAmount2,
+                     String note, long timestamp, Trade.Status status) {
+            this.dictionary = dictionary;
+            this.tradeIdMost = tradeId.getMostSignificantBits();
+            this.tradeIdLeast = tradeId.getLeastSignificantBits();
+            this.initiator = dictionary.internPlayer(initiatorId);
+            this.target = dictionary.internPlayer(targetId);
+            this.offeredItem = dictionary.internItem(offeredItem);
+            this.offeredAmount = offeredAmount;
+            this.requestedItem1 = dictionary.internItem(requestedItem1);
+            this.requestedAmount1 = requestedAmount1;
+            this.requestedItem2 = dictionary.internItem(requestedItem2);
+            this.requestedAmount2 = requestedAmount2;
+            this.note = note;
+            this.timestamp = timestamp;
+            this.status = (byte) status.ordinal();
         }
         
         // Getters
         public UUID getTradeId() {
-            return tradeId;
+            return new UUID(tradeIdMost, tradeIdLeast);
         }
         
         public UUID getInitiatorId() {
-            return initiatorId;
+            return dictionary.player(initiator);
         }
         
         public UUID getTargetId() {
-            return targetId;
+            return dictionary.player(target);
         }
         
         public String getOfferedItem() {
-            return offeredItem;
+            return dictionary.item(offeredItem);
         }
         
         public int getOfferedAmount() {
@@ -861,7 +952,7 @@ public class TradeManager {
         }
         
         public String getRequestedItem1() {
-            return requestedItem1;
+            return dictionary.item(requestedItem1);
         }
         
         public int getRequestedAmount1() {
@@ -869,7 +960,7 @@ public class TradeManager {
         }
         
         public String getRequestedItem2() {
-            return requestedItem2;
+            return dictionary.item(requestedItem2);
         }
         
         public int getRequestedAmount2() {
@@ -885,7 +976,63 @@ public class TradeManager {
         }
         
         public Trade.Status getStatus() {
-            return status;
+            return STATUSES[status];
+        }
+        
+        HistoryDictionary dictionary() {
+            return dictionary;
+        }
+        
+        // 字典下标，供列式存储使用
+        int initiatorIndex() {
+            return initiator;
+        }
+        
+        int targetIndex() {
+            return target;
+        }
+        
+        int offeredItemIndex() {
+            return offeredItem;
+        }
+        
+        int requestedItem1Index() {
+            return requestedItem1;
+        }
+        
+        int requestedItem2Index() {
+            return requestedItem2;
+        }
+        
+        // 旧版 exceptional_trades.json 的格式，导入时使用
+        static class JsonAdapter implements JsonDeserializer<TradeHistory> {
+            private final HistoryDictionary dictionary;
+            
+            JsonAdapter(HistoryDictionary dictionary) {
+                this.dictionary = dictionary;
+            }
+            
+            @Override
+            public TradeHistory deserialize(JsonElement element, Type type, JsonDeserializationContext context) {
+                JsonObject json = element.getAsJsonObject();
+                try {
+                    return new TradeHistory(dictionary,
+                            UUID.fromString(json.get("tradeId").getAsString()),
+                            UUID.fromString(json.get("initiatorId").getAsString()),
+                            UUID.fromString(json.get("targetId").getAsString()),
+                            json.get("offeredItem").getAsString(),
+                            json.get("offeredAmount").getAsInt(),
+                            json.get("requestedItem1").getAsString(),
+                            json.get("requestedAmount1").getAsInt(),
+                            json.get("requestedItem2").getAsString(),
+                            json.get("requestedAmount2").getAsInt(),
+                            json.has("note") && !json.get("note").isJsonNull() ? json.get("note").getAsString() : null,
+                            json.get("timestamp").getAsLong(),
+                            Trade.Status.valueOf(json.get("status").getAsString()));
+                } catch (RuntimeException e) {
+                    throw new JsonParseException("交易记录格式不正确: " + e.getMessage(), e);
+                }
+            }
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,92 @@
+package dev.xlonia.szkauhandler;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.*;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// 用 0..N-1 的乱序样本检验分位数的秩误差：值 v 的真实秩就是 v/N
+// 压缩的起点是随机的，每个用例都换几组种子，避免只碰巧通过一次
+class QuantileSketchTest {
+    private static final int SAMPLES = 1_000_000;
+    private static final int SEEDS = 5;
+    
+    @Test
+    void rankErrorOverOneMillionSamples() {
+        for (long seed = 1; seed <= SEEDS; seed++) {
+            int[] values = shuffledValues(SAMPLES, seed);
+            QuantileSketch sketch = new QuantileSketch(QuantileSketch.DEFAULT_K, seed);
+            for (int value : values) {
+                sketch.update(value);
+            }
+            assertEquals(SAMPLES, sketch.getCount());
+            assertRankError(sketch, seed);
+        }
+    }
+    
+    @Test
+    void rankErrorAfterMerge() {
+        int parts = 10;
+        int partSize = SAMPLES / parts;
+        for (long seed = 1; seed <= SEEDS; seed++) {
+            int[] values = shuffledValues(SAMPLES, seed + 100);
+            QuantileSketch merged = new QuantileSketch(QuantileSketch.DEFAULT_K, seed);
+            for (int part = 0; part < parts; part++) {
+                QuantileSketch sketch = new QuantileSketch(QuantileSketch.DEFAULT_K, seed * parts + part);
+                for (int i = part * partSize; i < (part + 1) * partSize; i++) {
+                    sketch.update(values[i]);
+                }
+                merged.merge(sketch);
+            }
+            assertEquals(SAMPLES, merged.getCount());
+            assertRankError(merged, seed);
+        }
+    }
+    
+    @Test
+    void roundTripKeepsQuantiles() throws IOException {
+        QuantileSketch sketch = new QuantileSketch();
+        for (int value : shuffledValues(100_000, 3)) {
+            sketch.update(value);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        sketch.write(new DataOutputStream(bytes));
+        QuantileSketch copy = QuantileSketch.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        assertEquals(sketch.getCount(), copy.getCount());
+        for (int p = 1; p < 100; p++) {
+            assertEquals(sketch.quantile(p / 100.0), copy.quantile(p / 100.0));
+        }
+    }
+    
+    // 1%..99% 分位的平均秩误差在 0.5% 以内，单个分位的误差不超过 1.5%
+    private static void assertRankError(QuantileSketch sketch, long seed) {
+        double sum = 0;
+        double max = 0;
+        for (int p = 1; p < 100; p++) {
+            double q = p / 100.0;
+            double error = Math.abs(sketch.quantile(q) / SAMPLES - q);
+            sum += error;
+            max = Math.max(max, error);
+        }
+        assertTrue(sum / 99 < 0.005, "种子 " + seed + " 的平均秩误差 " + sum / 99);
+        assertTrue(max < 0.015, "种子 " + seed + " 的最大秩误差 " + max);
+    }
+    
+    private static int[] shuffledValues(int count, long seed) {
+        int[] values = new int[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = i;
+        }
+        Random random = new Random(seed);
+        for (int i = count - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int swap = values[i];
+            values[i] = values[j];
+            values[j] = swap;
+        }
+        return values;
+    }
+}
\ No newline at end of file